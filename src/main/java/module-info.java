@@ -18,4 +18,6 @@ module net.tascalate.concurrent {
     exports net.tascalate.concurrent.decorators;
     exports net.tascalate.concurrent.delays;
     exports net.tascalate.concurrent.var;
+    
+    uses net.tascalate.concurrent.TimeoutScheduler;
 }
@@ -23,22 +23,16 @@
 package net.tascalate.concurrent;
 
 import static net.tascalate.concurrent.SharedFunctions.cancelPromise;
-import static net.tascalate.concurrent.SharedFunctions.unwrapCompletionException;
-import static net.tascalate.concurrent.SharedFunctions.unwrapExecutionException;
 import static net.tascalate.concurrent.SharedFunctions.wrapCompletionException;
-import static net.tascalate.concurrent.SharedFunctions.wrapExecutionException;
 
-import java.util.Arrays;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
@@ -55,40 +49,69 @@ import java.util.function.Function;
  */
 abstract class AbstractCompletableTask<T> extends PromiseAdapter<T> implements Promise<T> {
 
+    // Holds both the outcome of this stage and the callbacks of dependent stages 
     private final CallbackRegistry<T> callbackRegistry = new CallbackRegistry<>();
-    protected final RunnableFuture<T> task;
     protected final Callable<T> action;
 
+    // Either null, the thread running transition or the INTERRUPTING / INTERRUPTED marker
+    private volatile Object runner;
+    private volatile CompletionStage<?>[] cancellableOrigins;
+
     protected AbstractCompletableTask(Executor defaultExecutor, Callable<T> action) {
         super(defaultExecutor);
         this.action = action;
-        this.task = new StageTransition(action);
     }
     
-    private CompletionStage<?>[] cancellableOrigins;
-    private Object cancellableOriginsLock = new Object();
-    
     protected void resetCancellableOrigins(CompletionStage<?>... origins) {
-        synchronized (cancellableOriginsLock) {
-            this.cancellableOrigins = origins; 
-        }
+        this.cancellableOrigins = origins; 
     }
     
     protected void cancelOrigins(boolean mayInterruptIfRunning) {
-        synchronized (cancellableOriginsLock) {
-            if (null == cancellableOrigins) {
-                return;
-            }
-            Arrays.stream(cancellableOrigins).forEach(p -> cancelPromise(p, mayInterruptIfRunning)); 
+        CompletionStage<?>[] origins = cancellableOrigins;
+        if (null == origins) {
+            return;
+        }
+        for (CompletionStage<?> origin : origins) {
+            cancelPromise(origin, mayInterruptIfRunning);
         }
     }
 
     abstract void fireTransition(Callable<T> code);
+    
+    /**
+     * Executes the code that completes this stage, unless the stage is completed already 
+     * (i.e. cancelled) or the code is being executed by another thread.
+     * @param code
+     *   the code that provides the result of this stage
+     */
+    final void runTransition(Callable<T> code) {
+        Thread currentThread = Thread.currentThread();
+        if (callbackRegistry.isCompleted() || !RUNNER.compareAndSet(this, null, currentThread)) {
+            return;
+        }
+        try {
+            T result;
+            try {
+                result = code.call();
+            } catch (Throwable ex) {
+                onError(ex);
+                return;
+            }
+            onSuccess(result);
+        } finally {
+            if (!RUNNER.compareAndSet(this, currentThread, null)) {
+                // Concurrent cancel(true) is about to interrupt this thread,
+                // wait for it to avoid leaking interrupt to the next task 
+                while (runner == INTERRUPTING) {
+                    Thread.yield();
+                }
+            }
+        }
+    }
 
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
-        if (task.cancel(mayInterruptIfRunning)) {
-            onError(new CancellationException());
+        if (callbackRegistry.cancel(mayInterruptIfRunning ? this::interruptRunner : null)) {
             cancelOrigins(mayInterruptIfRunning);
             return true;
         } else {
@@ -98,30 +121,22 @@ abstract class AbstractCompletableTask<T> extends PromiseAdapter<T> implements P
 
     @Override
     public boolean isCancelled() {
-        return task.isCancelled();
+        return callbackRegistry.isCancelled();
     }
 
     @Override
     public boolean isDone() {
-        return task.isDone();
+        return callbackRegistry.isCompleted();
     }
 
     @Override
     public T get() throws InterruptedException, ExecutionException {
-        try {
-            return task.get();
-        } catch (ExecutionException ex) {
-            throw rewrapExecutionException(ex);
-        }
+        return callbackRegistry.get();
     }
 
     @Override
     public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        try {
-            return task.get(timeout, unit);
-        } catch (ExecutionException ex) {
-            throw rewrapExecutionException(ex);
-        }
+        return callbackRegistry.get(timeout, unit);
     }
 
     boolean onSuccess(T result) {
@@ -131,23 +146,16 @@ abstract class AbstractCompletableTask<T> extends PromiseAdapter<T> implements P
     boolean onError(Throwable ex) {
         return callbackRegistry.failure(ex);
     }
-
-    class StageTransition extends FutureTask<T> {
-        StageTransition(Callable<T> callable) {
-            super(callable);
+    
+    private void interruptRunner() {
+        Object currentRunner = RUNNER.getAndSet(this, INTERRUPTING);
+        try {
+            if (currentRunner instanceof Thread) {
+                ((Thread)currentRunner).interrupt();
+            }
+        } finally {
+            runner = INTERRUPTED;
         }
-
-        @Override
-        protected void set(T v) {
-            super.set(v);
-            onSuccess(v);
-        };
-
-        @Override
-        protected void setException(Throwable t) {
-            super.setException(t);
-            onError(t);
-        };
     }
 
     @Override
@@ -233,12 +241,12 @@ abstract class AbstractCompletableTask<T> extends PromiseAdapter<T> implements P
         nextStage.resetCancellableOrigins(tempStage);
 
         // We must ALWAYS run through the execution
-        // of nextStage.task when this nextStage is
+        // of nextStage transition when this nextStage is
         // exposed to the client, even in a "trivial" case:
         // Success path, just return value
-        Consumer<? super U> onResult = nextStage.runTransition(Function.identity());
+        Consumer<? super U> onResult = nextStage.transitionOf(Function.identity());
         // Failure path, just re-throw exception
-        Consumer<? super Throwable> onError = nextStage.runTransition(AbstractCompletableTask::forwardException);
+        Consumer<? super Throwable> onError = nextStage.transitionOf(AbstractCompletableTask::forwardException);
 
         // Important -- tempStage is the target here
         addCallbacks(
@@ -292,7 +300,7 @@ abstract class AbstractCompletableTask<T> extends PromiseAdapter<T> implements P
         return nextStage;
     }
     
-    private <U> Consumer<? super U> runTransition(Function<? super U, ? extends T> converter) {
+    private <U> Consumer<? super U> transitionOf(Function<? super U, ? extends T> converter) {
         return u -> fireTransition(() -> converter.apply(u)); 
     }
 
@@ -371,7 +379,7 @@ abstract class AbstractCompletableTask<T> extends PromiseAdapter<T> implements P
         CompletableFuture<T> completableFuture = new CompletableFuture<>();
         // nextStage is CompletableFuture rather than AbstractCompletableTask
         // so trigger completion on ad-hoc runnable rather than on
-        // nextStage.task
+        // nextStage transition
         Consumer<Callable<T>> setup = c -> {
             try {
                 c.call();
@@ -458,10 +466,6 @@ abstract class AbstractCompletableTask<T> extends PromiseAdapter<T> implements P
         throw wrapCompletionException(e);
     }
     
-    private static ExecutionException rewrapExecutionException(ExecutionException ex) {
-        return wrapExecutionException( unwrapCompletionException(unwrapExecutionException(ex)) );
-    }    
-
     private <U> void addCallbacks(AbstractCompletableTask<U> targetStage,
                                   Function<? super T, ? extends U> successCallback, 
                                   Executor executor) {
@@ -485,4 +489,10 @@ abstract class AbstractCompletableTask<T> extends PromiseAdapter<T> implements P
         callbackRegistry.addCallbacks(stageTransition, successCallback, failureCallback, executor);
     }
 
+    private static final Object INTERRUPTING = new Object();
+    private static final Object INTERRUPTED  = new Object();
+    
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<AbstractCompletableTask, Object> RUNNER =
+        AtomicReferenceFieldUpdater.newUpdater(AbstractCompletableTask.class, Object.class, "runner");
 }
\ No newline at end of file
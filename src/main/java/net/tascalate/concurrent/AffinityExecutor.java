@@ -0,0 +1,117 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Executor that keeps tasks submitted from its own worker threads on the same thread.
+ * <p>When the task is submitted from the worker of the underlying {@link ForkJoinPool} it is pushed
+ * to the deque of this worker. When the task is submitted from the thread that runs another task of
+ * this executor it is executed inline, unless <code>maxInlineDepth</code> nested tasks are already
+ * running on the thread. Otherwise the task is submitted to the underlying executor.
+ * <p>Executors that wrap the same underlying executor share the affinity.
+ *
+ * @author vsilaev
+ *
+ */
+class AffinityExecutor implements Executor {
+    private static final ThreadLocal<Frame> CURRENT_FRAME = new ThreadLocal<>();
+
+    private final Executor delegate;
+    private final ForkJoinPool pool;
+    private final int maxInlineDepth;
+
+    AffinityExecutor(Executor delegate, int maxInlineDepth) {
+        if (maxInlineDepth < 0) {
+            throw new IllegalArgumentException("Max inline depth must not be negative: " + maxInlineDepth);
+        }
+        this.delegate = delegate;
+        this.maxInlineDepth = maxInlineDepth;
+        if (delegate instanceof ForkJoinPool) {
+            pool = (ForkJoinPool)delegate;
+        } else if (delegate instanceof TaskExecutors.WorkStealingTaskExecutor) {
+            pool = ((TaskExecutors.WorkStealingTaskExecutor)delegate).pool();
+        } else {
+            pool = null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        Thread thread = Thread.currentThread();
+        if (null != pool && thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread)thread).getPool() == pool) {
+            ForkJoinTask.adapt(command).fork();
+            return;
+        }
+        Frame frame = CURRENT_FRAME.get();
+        if (null != frame && frame.owner == delegate && frame.depth < maxInlineDepth) {
+            frame.depth++;
+            try {
+                command.run();
+            } finally {
+                frame.depth--;
+            }
+            return;
+        }
+        delegate.execute(new BoundTask(delegate, command));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%s, maxInlineDepth=%d)", getClass().getSimpleName(), delegate, maxInlineDepth);
+    }
+
+    static final class Frame {
+        final Executor owner;
+        int depth;
+
+        Frame(Executor owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Marks the thread as a worker of the underlying executor while the task is running
+     */
+    static final class BoundTask implements Runnable {
+        private final Executor owner;
+        private final Runnable command;
+
+        BoundTask(Executor owner, Runnable command) {
+            this.owner = owner;
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            Frame previous = CURRENT_FRAME.get();
+            CURRENT_FRAME.set(new Frame(owner));
+            try {
+                command.run();
+            } finally {
+                if (null == previous) {
+                    CURRENT_FRAME.remove();
+                } else {
+                    CURRENT_FRAME.set(previous);
+                }
+            }
+        }
+    }
+}
@@ -17,24 +17,26 @@ package net.tascalate.concurrent;
 
 import static net.tascalate.concurrent.SharedFunctions.cancelPromise;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 class AggregatingPromise<T> extends CompletableFutureWrapper<List<T>> {
 
-    final private List<T> results;
-    final private List<Throwable> errors;
-    final private AtomicIntegerArray completions;
+    final private Object[] results;
+    // Allocated on first error only
+    private volatile Throwable[] errors;
 
-    final private AtomicInteger resultsCount = new AtomicInteger(0);
-    final private AtomicInteger errorsCount = new AtomicInteger(0);
-
-    final private AtomicBoolean done = new AtomicBoolean(false);
+    // Slots are reserved by *Count and published by *Stored counters, 
+    // so the completing thread sees all values written before
+    private volatile int resultsCount;
+    private volatile int resultsStored;
+    private volatile int errorsCount;
+    private volatile int errorsStored;
+    private volatile int done;
 
     final private int minResultsCount;
     final private int maxErrorsCount;
@@ -54,17 +56,13 @@ class AggregatingPromise<T> extends CompletableFutureWrapper<List<T>> {
         this.maxErrorsCount = maxErrorsCount < 0 ? 
             promises.size() - minResultsCount : Math.max(0, Math.min(maxErrorsCount, size - minResultsCount));
         this.cancelRemaining = cancelRemaining;
-        results = newList(size);
-        errors = newList(size);
-        completions = new AtomicIntegerArray(size);
+        results = new Object[size];
         setupCompletionHandlers();
     }
 
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
-        if (done.compareAndSet(false, true)) {
-            // Synchronized around done
-            markRemainingCancelled();
+        if (DONE.compareAndSet(this, 0, 1)) {
             cancelPromises();
             return super.cancel(mayInterruptIfRunning);
         } else {
@@ -73,22 +71,19 @@ class AggregatingPromise<T> extends CompletableFutureWrapper<List<T>> {
     }
 
     void onComplete(int idx, T result, Throwable error) {
-        if (!completions.compareAndSet(idx, PENDING, null == error ? COMPLETED_RESULT : COMPLETED_ERROR)) {
-            // Already completed
+        if (done != 0) {
+            // Already resolved, including remaining promises being cancelled
             return;
         }
         if (null == error) {
             // ON NEXT RESULT
-            final int c = resultsCount.incrementAndGet();
-            if (c <= minResultsCount) {
-                // Only one thread may access this due to check with
-                // "completions"
-                results.set(idx, result);
-                if (c == minResultsCount && done.compareAndSet(false, true)) {
-                    // Synchronized around done
-                    markRemainingCancelled();
+            if (RESULTS_COUNT.incrementAndGet(this) <= minResultsCount) {
+                results[idx] = result;
+                if (RESULTS_STORED.incrementAndGet(this) == minResultsCount && DONE.compareAndSet(this, 0, 1)) {
                     // Now no other thread can modify results array.
-                    delegate.complete(Collections.unmodifiableList(results));
+                    @SuppressWarnings("unchecked")
+                    List<T> resultsList = (List<T>)Arrays.asList(results);
+                    delegate.complete(Collections.unmodifiableList(resultsList));
                     if (cancelRemaining) {
                         cancelPromises();
                     }
@@ -96,20 +91,15 @@ class AggregatingPromise<T> extends CompletableFutureWrapper<List<T>> {
             }
         } else {
             // ON NEXT ERROR
-            final int c = errorsCount.getAndIncrement();
             // We are reporting maxErrorsCount + 1 exceptions
             // So if we specify that no exceptions should happen
             // we will report at least one
-            if (c <= maxErrorsCount) {
-                // Only one thread may access this due to check with
-                // "completions"
-                errors.set(idx, error);
-                if (c == maxErrorsCount && done.compareAndSet(false, true)) {
-                    // Synchronized around done
-                    markRemainingCancelled();
+            if (ERRORS_COUNT.getAndIncrement(this) <= maxErrorsCount) {
+                Throwable[] errors = errors();
+                errors[idx] = error;
+                if (ERRORS_STORED.incrementAndGet(this) == maxErrorsCount + 1 && DONE.compareAndSet(this, 0, 1)) {
                     // Now no other thread can modify errors array.
-                    delegate.completeExceptionally(new MultitargetException(Collections.unmodifiableList(errors)));
-
+                    delegate.completeExceptionally(new MultitargetException(Collections.unmodifiableList(Arrays.asList(errors))));
                     if (cancelRemaining) {
                         cancelPromises();
                     }
@@ -118,40 +108,53 @@ class AggregatingPromise<T> extends CompletableFutureWrapper<List<T>> {
         }
     }
 
-    private void markRemainingCancelled() {
-        for (int idx = completions.length() - 1; idx >= 0; idx--) {
-            completions.compareAndSet(idx, PENDING, COMPLETED_CANCEL);
+    private Throwable[] errors() {
+        Throwable[] result = errors;
+        if (null == result) {
+            result = new Throwable[results.length];
+            if (!ERRORS.compareAndSet(this, null, result)) {
+                result = errors;
+            }
         }
+        return result;
     }
 
     private void setupCompletionHandlers() {
         int i = 0;
         for (CompletionStage<? extends T> promise : promises) {
+            if (done != 0) {
+                // Resolved by already completed promises, 
+                // no reason to listen to the rest
+                break;
+            }
             final int idx = i++;
             promise.whenComplete((r, e) -> onComplete(idx, r, e));
         }
     }
 
     private void cancelPromises() {
-        int i = 0;
+        // Cancellation of already completed promise has no effect
         for (CompletionStage<? extends T> promise : promises) {
-            final int idx = i++;
-            if (completions.get(idx) == COMPLETED_CANCEL) {
-                cancelPromise(promise, true);
-            }
-        }
-    }
-
-    private static <T> List<T> newList(int length) {
-        final ArrayList<T> result = new ArrayList<>(length);
-        for (int i = length - 1; i >= 0; i--) {
-            result.add(null);
+            cancelPromise(promise, true);
         }
-        return result;
     }
 
-    private static final int PENDING = 0;
-    private static final int COMPLETED_RESULT = 1;
-    private static final int COMPLETED_ERROR = 2;
-    private static final int COMPLETED_CANCEL = -1;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AggregatingPromise> RESULTS_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(AggregatingPromise.class, "resultsCount");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AggregatingPromise> RESULTS_STORED =
+        AtomicIntegerFieldUpdater.newUpdater(AggregatingPromise.class, "resultsStored");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AggregatingPromise> ERRORS_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(AggregatingPromise.class, "errorsCount");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AggregatingPromise> ERRORS_STORED =
+        AtomicIntegerFieldUpdater.newUpdater(AggregatingPromise.class, "errorsStored");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AggregatingPromise> DONE =
+        AtomicIntegerFieldUpdater.newUpdater(AggregatingPromise.class, "done");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<AggregatingPromise, Throwable[]> ERRORS =
+        AtomicReferenceFieldUpdater.newUpdater(AggregatingPromise.class, Throwable[].class, "errors");
 }
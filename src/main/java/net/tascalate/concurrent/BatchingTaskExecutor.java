@@ -0,0 +1,207 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Executor that buffers submitted tasks and hands them over to the underlying executor in batches,
+ * so the underlying executor sees a single queue offer and a single thread wake-up per batch.
+ * <p>The batch is flushed when <code>maxBatchSize</code> tasks are buffered or <code>maxDelayNanos</code>
+ * elapsed since the first buffered task. With zero delay the batch is flushed immediately, yet
+ * tasks submitted while the batch waits for the thread are coalesced into it.
+ * <p>Tasks are buffered in the lock-free multi-producer / single-consumer queue: the only consumer is
+ * the batch that is currently running.
+ * <p>When the underlying executor rejects the batch, all buffered tasks are rejected: promises created by 
+ * <code>submit</code> are resolved with {@link RejectedExecutionException} and the submitter that triggered
+ * the flush gets the exception. Plain {@link Runnable}-s passed to <code>execute</code> have no promise to 
+ * resolve, so every dropped one is reported as the suppressed exception of the thrown one; when the batch 
+ * is flushed by the timer there is no submitter to throw to and they are dropped silently.
+ * Tasks accepted before shutdown are executed in any case.
+ *
+ * @author vsilaev
+ *
+ */
+class BatchingTaskExecutor extends TaskExecutors.TaskExecutorServiceAdapter {
+    private final ExecutorService delegate;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Runnable batch = this::runBatch;
+    private final Runnable flush = this::flush;
+
+    // MPSC queue: producers append to the tail, the running batch takes from the head
+    private volatile Node head;
+    private volatile Node tail;
+
+    private volatile int pending;
+    private volatile int scheduled;
+    private volatile boolean shutdown;
+
+    BatchingTaskExecutor(ExecutorService delegate, int maxBatchSize, long maxDelayNanos) {
+        super(delegate);
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Max batch size must be positive: " + maxBatchSize);
+        }
+        if (maxDelayNanos < 0) {
+            throw new IllegalArgumentException("Max delay must not be negative: " + maxDelayNanos);
+        }
+        this.delegate = delegate;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelayNanos;
+        this.head = this.tail = new Node(null);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor is shutdown");
+        }
+        Node node = new Node(command);
+        TAIL.getAndSet(this, node).next = node;
+        int count = PENDING.incrementAndGet(this);
+        if (count >= maxBatchSize || maxDelayNanos == 0) {
+            RejectedExecutionException rejected = flush();
+            if (null != rejected) {
+                throw rejected;
+            }
+        } else if (count == 1) {
+            // First task of the batch starts the time-based flush
+            TimeoutSchedulers.current().schedule(flush, maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        flush();
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> result = new ArrayList<>();
+        if (SCHEDULED.compareAndSet(this, 0, 1)) {
+            // No running batch, safe to consume
+            Runnable task;
+            while (null != (task = poll())) {
+                result.add(task);
+            }
+        }
+        result.addAll(delegate.shutdownNow());
+        return result;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown || delegate.isShutdown();
+    }
+
+    private RejectedExecutionException flush() {
+        if (pending > 0 && SCHEDULED.compareAndSet(this, 0, 1)) {
+            try {
+                delegate.execute(batch);
+            } catch (RejectedExecutionException ex) {
+                if (shutdown) {
+                    // Tasks accepted before shutdown must be executed
+                    runBatch();
+                } else {
+                    rejectBuffered(ex);
+                    return ex;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void rejectBuffered(RejectedExecutionException ex) {
+        try {
+            Runnable task;
+            while (null != (task = poll())) {
+                if (task instanceof AbstractCompletableTask) {
+                    ((AbstractCompletableTask<?>)task).onError(ex);
+                } else {
+                    ex.addSuppressed(new RejectedExecutionException("Task " + task + " rejected from " + delegate));
+                }
+            }
+        } finally {
+            scheduled = 0;
+        }
+        // Tasks submitted while rejecting
+        flush();
+    }
+
+    private void runBatch() {
+        try {
+            for (int i = 0; shutdown || i < maxBatchSize; i++) {
+                Runnable task = poll();
+                if (null == task) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (Throwable ex) {
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+                }
+            }
+        } finally {
+            scheduled = 0;
+        }
+        // Tasks submitted while the batch was running waited long enough
+        flush();
+    }
+
+    private Runnable poll() {
+        Node first = head.next;
+        if (null == first) {
+            // Either empty or producer swapped the tail but not linked the node yet
+            if (pending == 0) {
+                return null;
+            }
+            while (null == (first = head.next)) {
+                Thread.yield();
+            }
+        }
+        head = first;
+        Runnable task = first.task;
+        first.task = null;
+        PENDING.decrementAndGet(this);
+        return task;
+    }
+
+    static final class Node {
+        Runnable task;
+        volatile Node next;
+
+        Node(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<BatchingTaskExecutor, Node> TAIL =
+        AtomicReferenceFieldUpdater.newUpdater(BatchingTaskExecutor.class, Node.class, "tail");
+    private static final AtomicIntegerFieldUpdater<BatchingTaskExecutor> PENDING =
+        AtomicIntegerFieldUpdater.newUpdater(BatchingTaskExecutor.class, "pending");
+    private static final AtomicIntegerFieldUpdater<BatchingTaskExecutor> SCHEDULED =
+        AtomicIntegerFieldUpdater.newUpdater(BatchingTaskExecutor.class, "scheduled");
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import static net.tascalate.concurrent.SharedFunctions.cancelPromise;
+import static net.tascalate.concurrent.SharedFunctions.unwrapCompletionException;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Limits the number of concurrently running asynchronous operations without dedicating threads to them.
+ * <p>Every call takes a permit that is released when the promise returned by the call completes.
+ * When no permits are available the call waits in the bounded FIFO queue, or is rejected with
+ * already failed promise when the queue is full (<code>maxQueued == 0</code> means reject immediately).
+ * <p>The limit is either fixed or adaptive. The adaptive limit follows the AIMD rule: it grows by
+ * <code>1/limit</code> on every successful call while the bulkhead is utilized, and is cut by 10%
+ * when the call times out or its latency exceeds twice the baseline latency of the dependency.
+ * Like in TCP congestion control, the limit is cut at most once per window of concurrent calls.
+ *
+ * @author vsilaev
+ *
+ */
+public final class Bulkhead {
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // Baseline latency follows the minimum, slowly drifting up to track changes of the dependency
+    private static final int BASELINE_DRIFT = 100;
+    // Jitter of the sub-millisecond calls is not a sign of the overload
+    private static final long LATENCY_SLACK_NANOS = 1_000_000;
+
+    private final int maxQueued;
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final Queue<Call<?>> queue = new ConcurrentLinkedQueue<>();
+
+    private volatile int inFlight;
+    private volatile int queued;
+    private volatile int wip;
+    private volatile long limitBits;
+    private volatile long baselineNanos = Long.MAX_VALUE;
+    private volatile long lastDecrease = System.nanoTime();
+
+    private Bulkhead(int initialLimit, int minLimit, int maxLimit, int maxQueued, boolean adaptive) {
+        if (minLimit <= 0 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException(
+                "Limits must satisfy 0 < minLimit <= initialLimit <= maxLimit: " + minLimit + ", " + initialLimit + ", " + maxLimit
+            );
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("Max queued calls must not be negative: " + maxQueued);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueued = maxQueued;
+        this.adaptive = adaptive;
+        this.limitBits = Double.doubleToRawLongBits(initialLimit);
+    }
+
+    public static Bulkhead of(int maxConcurrency) {
+        return of(maxConcurrency, 0);
+    }
+
+    public static Bulkhead of(int maxConcurrency, int maxQueued) {
+        return new Bulkhead(maxConcurrency, maxConcurrency, maxConcurrency, maxQueued, false);
+    }
+
+    /**
+     * Creates a bulkhead with the adaptive (AIMD) limit
+     * @param initialLimit
+     *   the initial number of concurrent calls
+     * @param minLimit
+     *   the lowest possible limit
+     * @param maxLimit
+     *   the highest possible limit
+     * @param maxQueued
+     *   the maximum number of calls waiting for the permit
+     * @return
+     *   the new bulkhead
+     */
+    public static Bulkhead adaptive(int initialLimit, int minLimit, int maxLimit, int maxQueued) {
+        return new Bulkhead(initialLimit, minLimit, maxLimit, maxQueued, true);
+    }
+
+    public int getLimit() {
+        return (int)limit();
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Executes the asynchronous call when the permit is available
+     * @param <T>
+     *   a type of the result
+     * @param invoker
+     *   the call to execute, should not block
+     * @return
+     *   the promise of the call result, or the already failed promise if the bulkhead is full
+     */
+    public <T> Promise<T> execute(Callable<? extends CompletionStage<T>> invoker) {
+        Call<T> call = new Call<>(this, invoker);
+        // Don't overtake calls that are already waiting
+        if (queue.isEmpty() && tryAcquire()) {
+            call.run();
+            return call;
+        }
+        if (!tryEnqueue(call)) {
+            return Promises.failure(new RejectedExecutionException("Bulkhead is full"));
+        }
+        // Permit might be released after the failed attempt to acquire it
+        drain();
+        return call;
+    }
+
+    /**
+     * Submits the blocking call to the executor when the permit is available
+     * @param <T>
+     *   a type of the result
+     * @param code
+     *   the call to execute
+     * @param executor
+     *   the executor to run the call
+     * @return
+     *   the promise of the call result, or the already failed promise if the bulkhead is full
+     */
+    public <T> Promise<T> submit(Callable<T> code, Executor executor) {
+        return execute(() -> CompletableTask.submit(code, executor));
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight;
+            if (current >= (int)limit()) {
+                return false;
+            }
+            if (IN_FLIGHT.compareAndSet(this, current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean tryEnqueue(Call<?> call) {
+        while (true) {
+            int current = queued;
+            if (current >= maxQueued) {
+                return false;
+            }
+            if (QUEUED.compareAndSet(this, current, current + 1)) {
+                queue.offer(call);
+                return true;
+            }
+        }
+    }
+
+    private void drain() {
+        if (WIP.getAndIncrement(this) != 0) {
+            // Running drain will repeat, synchronously completed calls don't recurse
+            return;
+        }
+        do {
+            while (!queue.isEmpty() && tryAcquire()) {
+                Call<?> call = queue.poll();
+                if (null == call) {
+                    IN_FLIGHT.decrementAndGet(this);
+                    break;
+                }
+                QUEUED.decrementAndGet(this);
+                if (call.isDone()) {
+                    // Cancelled while waiting
+                    IN_FLIGHT.decrementAndGet(this);
+                } else {
+                    call.run();
+                }
+            }
+        } while (WIP.decrementAndGet(this) != 0);
+    }
+
+    void dequeue(Call<?> call) {
+        if (queue.remove(call)) {
+            // Free the slot of the call cancelled while waiting
+            QUEUED.decrementAndGet(this);
+        }
+    }
+
+    void release(long startTime, Throwable error) {
+        if (adaptive) {
+            adjustLimit(startTime, System.nanoTime(), error);
+        }
+        IN_FLIGHT.decrementAndGet(this);
+        drain();
+    }
+
+    private void adjustLimit(long startTime, long finishTime, Throwable error) {
+        long latencyNanos = finishTime - startTime;
+        long baseline = baselineNanos;
+        if (null == error) {
+            long nextBaseline = latencyNanos < baseline ? latencyNanos : baseline + (latencyNanos - baseline) / BASELINE_DRIFT;
+            BASELINE.compareAndSet(this, baseline, nextBaseline);
+        }
+        boolean overloaded = unwrapCompletionException(error) instanceof TimeoutException ||
+                             (baseline != Long.MAX_VALUE && latencyNanos > LATENCY_TOLERANCE * baseline + LATENCY_SLACK_NANOS);
+        while (true) {
+            long bits = limitBits;
+            double current = Double.longBitsToDouble(bits);
+            double next;
+            if (overloaded) {
+                if (startTime - lastDecrease < 0) {
+                    // The call was started before the previous decrease, cut the limit once per window
+                    return;
+                }
+                next = Math.max(minLimit, current * BACKOFF_RATIO);
+            } else if (null == error && inFlight * 2 >= current) {
+                next = Math.min(maxLimit, current + 1 / current);
+            } else {
+                return;
+            }
+            if (next == current) {
+                return;
+            }
+            if (LIMIT.compareAndSet(this, bits, Double.doubleToRawLongBits(next))) {
+                if (overloaded) {
+                    lastDecrease = finishTime;
+                }
+                return;
+            }
+        }
+    }
+
+    private double limit() {
+        return Double.longBitsToDouble(limitBits);
+    }
+
+    static final class Call<T> extends CompletableFutureWrapper<T> implements Runnable {
+        private final Bulkhead owner;
+        private final Callable<? extends CompletionStage<T>> invoker;
+        private volatile CompletionStage<T> target;
+        private volatile int released;
+
+        Call(Bulkhead owner, Callable<? extends CompletionStage<T>> invoker) {
+            this.owner = owner;
+            this.invoker = invoker;
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            try {
+                CompletionStage<T> stage = invoker.call();
+                if (null == stage) {
+                    throw new NullPointerException("Invoker returned null");
+                }
+                target = stage;
+                stage.whenComplete((r, e) -> complete(startTime, r, e));
+                if (isDone()) {
+                    cancelPromise(stage, true);
+                }
+            } catch (Throwable ex) {
+                // Never leak the permit, otherwise queued calls are stuck
+                complete(startTime, null, ex);
+            }
+        }
+
+        private void complete(long startTime, T result, Throwable error) {
+            if (!RELEASED.compareAndSet(this, 0, 1)) {
+                return;
+            }
+            owner.release(startTime, error);
+            if (null == error) {
+                delegate.complete(result);
+            } else {
+                delegate.completeExceptionally(unwrapCompletionException(error));
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (super.cancel(mayInterruptIfRunning)) {
+                CompletionStage<T> stage = target;
+                if (null != stage) {
+                    cancelPromise(stage, mayInterruptIfRunning);
+                } else {
+                    owner.dequeue(this);
+                }
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Call> RELEASED =
+            AtomicIntegerFieldUpdater.newUpdater(Call.class, "released");
+    }
+
+    private static final AtomicIntegerFieldUpdater<Bulkhead> IN_FLIGHT =
+        AtomicIntegerFieldUpdater.newUpdater(Bulkhead.class, "inFlight");
+    private static final AtomicIntegerFieldUpdater<Bulkhead> QUEUED =
+        AtomicIntegerFieldUpdater.newUpdater(Bulkhead.class, "queued");
+    private static final AtomicIntegerFieldUpdater<Bulkhead> WIP =
+        AtomicIntegerFieldUpdater.newUpdater(Bulkhead.class, "wip");
+    private static final AtomicLongFieldUpdater<Bulkhead> LIMIT =
+        AtomicLongFieldUpdater.newUpdater(Bulkhead.class, "limitBits");
+    private static final AtomicLongFieldUpdater<Bulkhead> BASELINE =
+        AtomicLongFieldUpdater.newUpdater(Bulkhead.class, "baselineNanos");
+}
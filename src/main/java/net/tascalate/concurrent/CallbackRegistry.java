@@ -22,19 +22,37 @@
  */
 package net.tascalate.concurrent;
 
-import java.util.LinkedList;
+import static net.tascalate.concurrent.SharedFunctions.unwrapCompletionException;
+import static net.tascalate.concurrent.SharedFunctions.unwrapExecutionException;
+import static net.tascalate.concurrent.SharedFunctions.wrapExecutionException;
+
+import java.util.ArrayDeque;
 import java.util.Objects;
-import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
+/**
+ * Lock-free registry of completion callbacks that also holds the outcome 
+ * of the stage and the threads blocked awaiting for it.
+ * <p>The whole state is kept in the single volatile field that is either
+ * <code>null</code> (no result, no callbacks), the head of the Treiber stack 
+ * of the pending {@link CallbackNode}-s, or the final {@link Outcome}.
+ * All transitions are done via CAS, the thread that installs an outcome 
+ * releases awaiting threads and drains the stack of callbacks in the order 
+ * they were registered.
+ */
 class CallbackRegistry<T> {
-    private State<T> state = InitialState.instance();
-
-    private final Object mutex = new Object();
+    private volatile Object state;
+    private volatile WaitNode waiters;
 
     /**
      * Adds the given callbacks to this registry.
@@ -51,8 +69,24 @@ class CallbackRegistry<T> {
         @SuppressWarnings("unchecked")
         Consumer<? super Callable<?>> typedTransition = (Consumer<? super Callable<?>>)stageTransition;
 
-        synchronized (mutex) {
-            state = state.addCallbacks(typedTransition, successCallback, failureCallback, executor);
+        CallbackNode<T> node = null;
+        while (true) {
+            Object current = state;
+            if (current instanceof Outcome) {
+                @SuppressWarnings("unchecked")
+                Outcome<T> outcome = (Outcome<T>)current;
+                outcome.callCallback(typedTransition, successCallback, failureCallback, executor);
+                return;
+            }
+            if (null == node) {
+                node = new CallbackNode<>(typedTransition, successCallback, failureCallback, executor);
+            }
+            @SuppressWarnings("unchecked")
+            CallbackNode<T> head = (CallbackNode<T>)current;
+            node.next = head;
+            if (STATE.compareAndSet(this, current, node)) {
+                return;
+            }
         }
     }
 
@@ -64,17 +98,7 @@ class CallbackRegistry<T> {
      * @return true if this result will be used (first result registered)
      */
     boolean success(T result) {
-        State<T> oldState;
-        synchronized (mutex) {
-            if (state.isCompleted()) {
-                return false;
-            }
-            oldState = state;
-            state = state.getSuccessState(result);
-        }
-        oldState.callSuccessCallbacks(result);
-        return true;
-
+        return !isCompleted() && complete(new SuccessState<>(result), null);
     }
 
     /**
@@ -85,202 +109,288 @@ class CallbackRegistry<T> {
      * @return true if this result will be used (first result registered)
      */
     boolean failure(Throwable failure) {
-        State<T> oldState;
-        synchronized (mutex) {
-            if (state.isCompleted()) {
-                return false;
-            }
-            oldState = state;
-            state = state.getFailureState(failure);
-        }
-        oldState.callFailureCallbacks(failure);
-        return true;
+        return !isCompleted() && complete(new FailureState<>(failure), null);
     }
-
+    
     /**
-     * State of the registry. All subclasses are meant to be used form a
-     * synchronized block and are NOT thread safe on their own.
+     * To be called to cancel the stage
+     * 
+     * @param onCancel
+     *            the code to run after the stage is cancelled but before
+     *            callbacks are executed, may be null
+     * @return true if cancellation will be used (first result registered)
      */
-    private static abstract class State<S> {
-        protected abstract State<S> addCallbacks(Consumer<? super Callable<?>> stageTransition,
-                                                 Function<? super S, ?> successCallback, 
-                                                 Function<Throwable, ?> failureCallback, 
-                                                 Executor executor);
-
-        protected State<S> getSuccessState(S result) {
-            throw new IllegalStateException("success method should not be called multiple times");
-        }
-
-        protected void callSuccessCallbacks(S result) {
-        }
-
-        protected State<S> getFailureState(Throwable failure) {
-            throw new IllegalStateException("failure method should not be called multiple times");
-        }
-
-        protected void callFailureCallbacks(Throwable failure) {
-        }
-
-        protected boolean isCompleted() {
-            return true;
-        }
+    boolean cancel(Runnable onCancel) {
+        return !isCompleted() && complete(new CancelledState<>(new CancellationException()), onCancel);
     }
-
+    
+    boolean isCompleted() {
+        return state instanceof Outcome;
+    }
+    
+    boolean isCancelled() {
+        return state instanceof CancelledState;
+    }
+    
     /**
-     * Result is not known yet and no callbacks registered. Using shared
-     * instance so we do not allocate instance where it may not be needed.
+     * Awaits for the stage completion
+     * 
+     * @return the result value
+     * @throws InterruptedException
+     *             if the current thread was interrupted while waiting
+     * @throws ExecutionException
+     *             if the stage was completed exceptionally
+     * @throws CancellationException 
+     *             if the stage was cancelled
      */
-    private static class InitialState<S> extends State<S> {
-        private static final InitialState<Object> instance = new InitialState<>();
-
-        @Override
-        protected State<S> addCallbacks(Consumer<? super Callable<?>> stageTransition,
-                                        Function<? super S, ?> successCallback, 
-                                        Function<Throwable, ?> failureCallback, 
-                                        Executor executor) {
-            
-            IntermediateState<S> intermediateState = new IntermediateState<>();
-            intermediateState.addCallbacks(stageTransition, successCallback, failureCallback, executor);
-            return intermediateState;
-        }
-
-        @Override
-        protected State<S> getSuccessState(S result) {
-            return new SuccessState<>(result);
-        }
-
-        @Override
-        protected State<S> getFailureState(Throwable failure) {
-            return new FailureState<>(failure);
-        }
-
-        @Override
-        protected boolean isCompleted() {
-            return false;
-        }
-
-        @SuppressWarnings("unchecked")
-        private static <T> State<T> instance() {
-            return (State<T>) instance;
-        }
+    T get() throws InterruptedException, ExecutionException {
+        return awaitOutcome(false, 0L).get();
     }
-
+    
     /**
-     * Result is not known yet.
+     * Awaits at most the given time for the stage completion
+     * 
+     * @return the result value
+     * @throws InterruptedException
+     *             if the current thread was interrupted while waiting
+     * @throws ExecutionException
+     *             if the stage was completed exceptionally
+     * @throws CancellationException 
+     *             if the stage was cancelled
+     * @throws TimeoutException
+     *             if the wait timed out    
      */
-    private static class IntermediateState<S> extends State<S> {
-        private final Queue<CallbackHolder<? super S>> callbacks = new LinkedList<>();
-
-        @Override
-        protected State<S> addCallbacks(Consumer<? super Callable<?>> stageTransition,
-                                        Function<? super S, ?> successCallback, 
-                                        Function<Throwable, ?> failureCallback, 
-                                        Executor executor) {
-            
-            callbacks.add(new CallbackHolder<>(stageTransition, successCallback, failureCallback, executor));
-            return this;
+    T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        Outcome<T> outcome = awaitOutcome(true, unit.toNanos(timeout));
+        if (null == outcome) {
+            throw new TimeoutException();
         }
-
-        @Override
-        protected State<S> getSuccessState(S result) {
-            return new SuccessState<>(result);
+        return outcome.get();
+    }
+    
+    private Outcome<T> awaitOutcome(boolean timed, long nanos) throws InterruptedException {
+        long deadline = timed ? System.nanoTime() + nanos : 0L;
+        WaitNode node = null;
+        while (true) {
+            Object current = state;
+            if (current instanceof Outcome) {
+                if (null != node) {
+                    node.thread = null;
+                }
+                @SuppressWarnings("unchecked")
+                Outcome<T> outcome = (Outcome<T>)current;
+                return outcome;
+            } 
+            if (Thread.interrupted()) {
+                removeWaiter(node);
+                throw new InterruptedException();
+            } 
+            if (null == node) {
+                node = new WaitNode();
+                // Re-check state before enqueue
+                continue;
+            } 
+            if (!node.queued) {
+                node.next = waiters;
+                node.queued = WAITERS.compareAndSet(this, node.next, node);
+                // Either way re-check state before parking
+                continue;
+            }
+            if (timed) {
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0L) {
+                    removeWaiter(node);
+                    return null;
+                }
+                LockSupport.parkNanos(this, nanos);
+            } else {
+                LockSupport.park(this);
+            }
         }
-
-        @Override
-        protected void callSuccessCallbacks(S result) {
-            // no need to remove callbacks from the queue, this instance will be
-            // thrown away at once
-            for (CallbackHolder<? super S> callback : callbacks) {
-                callback.callSuccessCallback(result);
+    }
+    
+    private void removeWaiter(WaitNode node) {
+        if (null == node) {
+            return;
+        }
+        node.thread = null;
+        // Unlink all abandoned nodes, restart on interference
+        retry:
+        while (true) {
+            for (WaitNode pred = null, q = waiters, s; null != q; q = s) {
+                s = q.next;
+                if (null != q.thread) {
+                    pred = q;
+                } else if (null != pred) {
+                    pred.next = s;
+                    if (null == pred.thread) {
+                        continue retry;
+                    }
+                } else if (!WAITERS.compareAndSet(this, q, s)) {
+                    continue retry;
+                }
             }
+            break;
         }
-
-        @Override
-        protected State<S> getFailureState(Throwable failure) {
-            return new FailureState<>(failure);
+    }
+    
+    private void releaseWaiters() {
+        WaitNode q;
+        while (null != (q = waiters)) {
+            if (WAITERS.compareAndSet(this, q, null)) {
+                for (; null != q; q = q.next) {
+                    Thread t = q.thread;
+                    if (null != t) {
+                        q.thread = null;
+                        LockSupport.unpark(t);
+                    }
+                }
+                break;
+            }
         }
-
-        @Override
-        protected void callFailureCallbacks(Throwable failure) {
-            // no need to remove callbacks from the queue, this instance will be
-            // thrown away at once
-            for (CallbackHolder<? super S> callback : callbacks) {
-                callback.callFailureCallback(failure);
+    }
+    
+    private boolean complete(Outcome<T> outcome, Runnable onComplete) {
+        while (true) {
+            Object current = state;
+            if (current instanceof Outcome) {
+                return false;
+            }
+            if (STATE.compareAndSet(this, current, outcome)) {
+                if (null != onComplete) {
+                    onComplete.run();
+                }
+                releaseWaiters();
+                @SuppressWarnings("unchecked")
+                CallbackNode<T> head = (CallbackNode<T>)current;
+                // Stack is LIFO, restore registration order first
+                for (CallbackNode<T> node = reverse(head); null != node; node = node.next) {
+                    outcome.callCallback(node.stageTransition, node.successCallback, node.failureCallback, node.executor);
+                }
+                return true;
             }
         }
-
-        @Override
-        protected boolean isCompleted() {
-            return false;
+    }
+    
+    private static <S> CallbackNode<S> reverse(CallbackNode<S> head) {
+        // Nodes are not reachable by other threads anymore
+        // so they may be re-linked in-place
+        CallbackNode<S> reversed = null;
+        while (null != head) {
+            CallbackNode<S> next = head.next;
+            head.next = reversed;
+            reversed = head;
+            head = next;
         }
+        return reversed;
+    }
+
+    /**
+     * Final state of the registry -- either a result or a failure
+     */
+    private static abstract class Outcome<S> {
+        abstract S get() throws ExecutionException;
+        
+        abstract void callCallback(Consumer<? super Callable<?>> stageTransition,
+                                   Function<? super S, ?> successCallback, 
+                                   Function<Throwable, ?> failureCallback, 
+                                   Executor executor);
     }
 
     /**
      * Holds the result.
      */
-    private static final class SuccessState<S> extends State<S> {
+    private static final class SuccessState<S> extends Outcome<S> {
         private final S result;
 
         private SuccessState(S result) {
             this.result = result;
         }
+        
+        @Override
+        S get() {
+            return result;
+        }
 
         @Override
-        protected State<S> addCallbacks(Consumer<? super Callable<?>> stageTransition,
-                                        Function<? super S, ?> successCallback, 
-                                        Function<Throwable, ?> failureCallback, 
-                                        Executor executor) {
+        void callCallback(Consumer<? super Callable<?>> stageTransition,
+                          Function<? super S, ?> successCallback, 
+                          Function<Throwable, ?> failureCallback, 
+                          Executor executor) {
             
-            callCallback(stageTransition, successCallback, result, executor);
-            return this;
+            CallbackRegistry.callCallback(stageTransition, successCallback, result, executor);
         }
     }
 
     /**
      * Holds the failure.
      */
-    private static final class FailureState<S> extends State<S> {
+    private static class FailureState<S> extends Outcome<S> {
         private final Throwable failure;
 
         private FailureState(Throwable failure) {
             this.failure = failure;
         }
+        
+        @Override
+        S get() throws ExecutionException {
+            throw wrapExecutionException( unwrapCompletionException(unwrapExecutionException(failure)) );
+        }
 
         @Override
-        protected State<S> addCallbacks(Consumer<? super Callable<?>> stageTransition,
-                                        Function<? super S, ?> successCallback, 
-                                        Function<Throwable, ?> failureCallback, 
-                                        Executor executor) {
+        void callCallback(Consumer<? super Callable<?>> stageTransition,
+                          Function<? super S, ?> successCallback, 
+                          Function<Throwable, ?> failureCallback, 
+                          Executor executor) {
             
-            callCallback(stageTransition, failureCallback, failure, executor);
-            return this;
+            CallbackRegistry.callCallback(stageTransition, failureCallback, failure, executor);
+        }
+    }
+
+    /**
+     * Holds the cancellation.
+     */
+    private static final class CancelledState<S> extends FailureState<S> {
+        private CancelledState(CancellationException failure) {
+            super(failure);
+        }
+        
+        @Override
+        S get() {
+            throw new CancellationException();
         }
     }
 
-    private static final class CallbackHolder<S> {
+    /**
+     * Pending callbacks, result is not known yet.
+     */
+    private static final class CallbackNode<S> {
         private final Consumer<? super Callable<?>> stageTransition;
         private final Function<? super S, ?> successCallback;
         private final Function<Throwable, ?> failureCallback;
         private final Executor executor;
+        
+        private CallbackNode<S> next;
 
-        private CallbackHolder(Consumer<? super Callable<?>> stageTransition,
-                               Function<? super S, ?> successCallback, 
-                               Function<Throwable, ?> failureCallback, 
-                               Executor executor) {
+        private CallbackNode(Consumer<? super Callable<?>> stageTransition,
+                             Function<? super S, ?> successCallback, 
+                             Function<Throwable, ?> failureCallback, 
+                             Executor executor) {
 
             this.stageTransition = stageTransition;
             this.successCallback = successCallback;
             this.failureCallback = failureCallback;
             this.executor = executor;
         }
+    }
 
-        void callSuccessCallback(S result) {
-            callCallback(stageTransition, successCallback, result, executor);
-        }
-
-        void callFailureCallback(Throwable failure) {
-            callCallback(stageTransition, failureCallback, failure, executor);
-        }
+    /**
+     * Thread blocked in get() 
+     */
+    private static final class WaitNode {
+        volatile Thread thread = Thread.currentThread();
+        volatile WaitNode next;
+        boolean queued;
     }
 
     private static <S, U> void callCallback(Consumer<? super Callable<?>> stageTransition,
@@ -288,14 +398,96 @@ class CallbackRegistry<T> {
                                     S value, 
                                     Executor executor) {
 
-        Callable<U> callable = () -> callback.apply(value);
+        Transition<S, U> transition = new Transition<>(stageTransition, callback, value);
+        if (executor == PromiseAdapter.SAME_THREAD_EXECUTOR) {
+            // Direct executor -- run in-place without executor hop,
+            // bounded trampoline prevents stack overflow on deep chains
+            TRAMPOLINE.get().execute(transition);
+            return;
+        }
         try {
-            executor.execute( () -> stageTransition.accept(callable) );
+            executor.execute(transition);
         } catch (RejectedExecutionException ex) {
             // Propagate error in-place
             Callable<U> propagateError = () -> { throw ex; };
             stageTransition.accept(propagateError);
         }
     }
-
+    
+    /**
+     * Both the code of the callback and the task that fires stage transition 
+     * with this code, i.e. the only object allocated per callback call
+     */
+    private static final class Transition<S, U> implements Callable<U>, Runnable {
+        private final Consumer<? super Callable<?>> stageTransition;
+        private final Function<? super S, ? extends U> callback;
+        private final S value;
+        
+        Transition(Consumer<? super Callable<?>> stageTransition, Function<? super S, ? extends U> callback, S value) {
+            this.stageTransition = stageTransition;
+            this.callback = callback;
+            this.value = value;
+        }
+        
+        @Override
+        public U call() {
+            return callback.apply(value);
+        }
+        
+        @Override
+        public void run() {
+            stageTransition.accept(this);
+        }
+    }
+    
+    /**
+     * Per-thread trampoline for the transitions executed in-place. Nested transitions
+     * are executed recursively up to {@link #MAX_DIRECT_DEPTH}; deeper transitions
+     * are deferred and executed by the outermost call once the stack is unwound.
+     */
+    private static final class Trampoline {
+        private int depth;
+        private ArrayDeque<Runnable> deferred;
+        
+        void execute(Runnable transition) {
+            if (depth >= MAX_DIRECT_DEPTH) {
+                if (null == deferred) {
+                    deferred = new ArrayDeque<>();
+                }
+                deferred.add(transition);
+                return;
+            }
+            depth++;
+            try {
+                transition.run();
+            } finally {
+                depth--;
+                if (depth == 0 && null != deferred) {
+                    drainDeferred();
+                }
+            }
+        }
+        
+        private void drainDeferred() {
+            Runnable next;
+            while (null != (next = deferred.poll())) {
+                depth++;
+                try {
+                    next.run();
+                } finally {
+                    depth--;
+                }
+            }
+        }
+    }
+    
+    private static final int MAX_DIRECT_DEPTH = 32;
+    private static final ThreadLocal<Trampoline> TRAMPOLINE = ThreadLocal.withInitial(Trampoline::new);
+    
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<CallbackRegistry, Object> STATE =
+        AtomicReferenceFieldUpdater.newUpdater(CallbackRegistry.class, Object.class, "state");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<CallbackRegistry, WaitNode> WAITERS =
+        AtomicReferenceFieldUpdater.newUpdater(CallbackRegistry.class, WaitNode.class, "waiters");
 }
@@ -0,0 +1,369 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import static net.tascalate.concurrent.SharedFunctions.unwrapCompletionException;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Circuit breaker that rejects calls to the failing dependency without executing them.
+ * <p>While <code>CLOSED</code> the outcomes of calls are counted in the sliding time window.
+ * When at least <code>minimumCalls</code> were made within the window and the failure rate
+ * reaches the threshold, the breaker becomes <code>OPEN</code> and every call fails fast with
+ * {@link CircuitBreakerOpenException}. After <code>openDuration</code> the breaker is
+ * <code>HALF_OPEN</code>: only <code>halfOpenCalls</code> trial calls are permitted, the breaker
+ * closes when all of them succeed and opens again on the first failure.
+ * <p>Errors are classified by the {@link RetryPolicy}: only errors the policy would retry on are
+ * failures, the rest (as well as invalid results) prove the dependency is alive.
+ * The breaker may be shared by many callers, use it directly via {@link #execute(Callable)} /
+ * {@link #submit(Callable, Executor)} or in retry loops via {@link RetryPolicy#withCircuitBreaker(CircuitBreaker)}.
+ * <p>Every permitted call gets the {@link Permit} of the current phase, so late outcomes of calls
+ * permitted before the breaker changed its state are ignored.
+ *
+ * @author vsilaev
+ *
+ */
+public final class CircuitBreaker {
+    public static enum State {
+        CLOSED, OPEN, HALF_OPEN;
+    }
+
+    public static final int DEFAULT_MINIMUM_CALLS = 20;
+    public static final int DEFAULT_HALF_OPEN_CALLS = 3;
+    public static final Duration DEFAULT_WINDOW = Duration.ofSeconds(10);
+
+    // Every bucket of the window is a long: [epoch tag: 22 bits][successes: 21 bits][failures: 21 bits]
+    private static final int WINDOW_BUCKETS = 10;
+    private static final int COUNT_BITS = 21;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final int TAG_SHIFT = 2 * COUNT_BITS;
+    private static final long TAG_MASK = (1L << (64 - TAG_SHIFT)) - 1;
+
+    private final RetryPolicy<?> classifier;
+    private final double failureRateThreshold;
+    private final int minimumCalls;
+    private final long bucketNanos;
+    private final long openNanos;
+    private final int halfOpenCalls;
+    private final AtomicLongArray buckets = new AtomicLongArray(WINDOW_BUCKETS);
+
+    private volatile Phase phase;
+
+    private CircuitBreaker(RetryPolicy<?> classifier, double failureRateThreshold, int minimumCalls,
+                           long bucketNanos, long openNanos, int halfOpenCalls) {
+        this.classifier = classifier;
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumCalls = minimumCalls;
+        this.bucketNanos = bucketNanos;
+        this.openNanos = openNanos;
+        this.halfOpenCalls = halfOpenCalls;
+        this.phase = new Phase(State.CLOSED, 0, 0, 0, new Permit(this));
+    }
+
+    public static CircuitBreaker of(RetryPolicy<?> classifier, double failureRateThreshold, Duration openDuration) {
+        return of(classifier, failureRateThreshold, DEFAULT_MINIMUM_CALLS, DEFAULT_WINDOW, openDuration, DEFAULT_HALF_OPEN_CALLS);
+    }
+
+    /**
+     * Creates new circuit breaker
+     * @param classifier
+     *   the retry policy that classifies errors, errors it retries on are counted as failures
+     * @param failureRateThreshold
+     *   the failure rate that opens the breaker, must be in range (0, 1]
+     * @param minimumCalls
+     *   the minimal number of calls within the window to evaluate the failure rate
+     * @param window
+     *   the duration of the sliding window
+     * @param openDuration
+     *   how long the breaker rejects calls before trying the dependency again
+     * @param halfOpenCalls
+     *   the number of trial calls in half-open state
+     * @return
+     *   the new circuit breaker
+     */
+    public static CircuitBreaker of(RetryPolicy<?> classifier, double failureRateThreshold, int minimumCalls,
+                                    Duration window, Duration openDuration, int halfOpenCalls) {
+        Objects.requireNonNull(classifier, "Classifier policy must be specified");
+        if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+            throw new IllegalArgumentException("Failure rate threshold must be in range (0, 1]: " + failureRateThreshold);
+        }
+        if (minimumCalls <= 0) {
+            throw new IllegalArgumentException("Minimum calls must be positive: " + minimumCalls);
+        }
+        if (halfOpenCalls <= 0) {
+            throw new IllegalArgumentException("Half-open calls must be positive: " + halfOpenCalls);
+        }
+        if (!DelayPolicy.isValid(window) || !DelayPolicy.isValid(openDuration)) {
+            throw new IllegalArgumentException("Window and open duration must be positive");
+        }
+        return new CircuitBreaker(classifier, failureRateThreshold, minimumCalls,
+                                  Math.max(1, window.toNanos() / WINDOW_BUCKETS), openDuration.toNanos(), halfOpenCalls);
+    }
+
+    public State getState() {
+        return phase.state;
+    }
+
+    /**
+     * Returns the failure rate within the current window
+     * @return
+     *   the failure rate in range [0, 1]
+     */
+    public double getFailureRate() {
+        long[] counts = windowCounts(System.nanoTime());
+        long calls = counts[0] + counts[1];
+        return calls == 0 ? 0 : (double)counts[1] / calls;
+    }
+
+    /**
+     * Checks whether the call is permitted, the outcome of every permitted call must be reported 
+     * via {@link Permit#onComplete(Throwable)} or the permit must be given back via {@link Permit#release()}
+     * @return
+     *   the permit of the call or null if the call may not proceed
+     */
+    public Permit tryAcquirePermission() {
+        while (true) {
+            Phase current = phase;
+            if (current.state == State.CLOSED) {
+                return current.permit;
+            }
+            long now = System.nanoTime();
+            Phase next;
+            if (current.state == State.OPEN) {
+                if (now - current.since < openNanos) {
+                    return null;
+                }
+                next = new Phase(State.HALF_OPEN, now, 1, 0, new Permit(this));
+            } else if (current.trials < halfOpenCalls) {
+                next = new Phase(State.HALF_OPEN, current.since, current.trials + 1, current.successes, current.permit);
+            } else if (now - current.since >= openNanos) {
+                // Outcomes of the trial calls were lost, start new trials
+                next = new Phase(State.HALF_OPEN, now, 1, 0, new Permit(this));
+            } else {
+                return null;
+            }
+            if (PHASE.compareAndSet(this, current, next)) {
+                return next.permit;
+            }
+        }
+    }
+
+    void onComplete(Permit permit, Throwable error) {
+        boolean failure = null != error && classifier.isRetryableError(unwrapCompletionException(error));
+        long now = System.nanoTime();
+        while (true) {
+            Phase current = phase;
+            if (current.permit != permit) {
+                // Late outcome of the call permitted before the breaker changed its state
+                return;
+            }
+            if (current.state == State.CLOSED) {
+                record(now, failure);
+                if (failure && shouldTrip(now)) {
+                    PHASE.compareAndSet(this, current, new Phase(State.OPEN, now, 0, 0, new Permit(this)));
+                }
+                return;
+            }
+            Phase next;
+            if (failure) {
+                next = new Phase(State.OPEN, now, 0, 0, new Permit(this));
+            } else if (current.successes + 1 >= halfOpenCalls) {
+                next = new Phase(State.CLOSED, now, 0, 0, new Permit(this));
+            } else {
+                next = new Phase(State.HALF_OPEN, current.since, current.trials, current.successes + 1, current.permit);
+            }
+            if (PHASE.compareAndSet(this, current, next)) {
+                if (next.state == State.CLOSED) {
+                    resetWindow();
+                }
+                return;
+            }
+        }
+    }
+
+    void release(Permit permit) {
+        while (true) {
+            Phase current = phase;
+            if (current.permit != permit || current.state != State.HALF_OPEN || current.trials == 0) {
+                return;
+            }
+            Phase next = new Phase(State.HALF_OPEN, current.since, current.trials - 1, current.successes, current.permit);
+            if (PHASE.compareAndSet(this, current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Executes the asynchronous call if permitted
+     * @param <T>
+     *   a type of the result
+     * @param invoker
+     *   the call to execute
+     * @return
+     *   the promise of the call result, or the already failed promise if the breaker is open
+     */
+    public <T> Promise<T> execute(Callable<? extends CompletionStage<T>> invoker) {
+        Permit permit = tryAcquirePermission();
+        if (null == permit) {
+            return Promises.failure(new CircuitBreakerOpenException());
+        }
+        Promise<T> result;
+        try {
+            result = Promises.from(invoker.call());
+        } catch (Exception ex) {
+            permit.onComplete(ex);
+            return Promises.failure(ex);
+        }
+        result.whenComplete((r, e) -> permit.onComplete(e));
+        return result;
+    }
+
+    /**
+     * Submits the blocking call to the executor if permitted, the executor is not touched when the breaker is open
+     * @param <T>
+     *   a type of the result
+     * @param code
+     *   the call to execute
+     * @param executor
+     *   the executor to run the call
+     * @return
+     *   the promise of the call result, or the already failed promise if the breaker is open
+     */
+    public <T> Promise<T> submit(Callable<T> code, Executor executor) {
+        Permit permit = tryAcquirePermission();
+        if (null == permit) {
+            return Promises.failure(new CircuitBreakerOpenException());
+        }
+        Promise<T> result = CompletableTask.submit(code, executor);
+        result.whenComplete((r, e) -> permit.onComplete(e));
+        return result;
+    }
+
+    private boolean shouldTrip(long now) {
+        long[] counts = windowCounts(now);
+        long calls = counts[0] + counts[1];
+        return calls >= minimumCalls && counts[1] >= failureRateThreshold * calls;
+    }
+
+    private void record(long now, boolean failure) {
+        // System.nanoTime() may be negative
+        long epoch = Math.floorDiv(now, bucketNanos);
+        int idx = (int)Math.floorMod(epoch, (long)WINDOW_BUCKETS);
+        long tag = epoch & TAG_MASK;
+        while (true) {
+            long value = buckets.get(idx);
+            long successes, failures;
+            if (value >>> TAG_SHIFT == tag) {
+                successes = (value >>> COUNT_BITS) & COUNT_MASK;
+                failures  = value & COUNT_MASK;
+            } else {
+                // Stale bucket from the previous round
+                successes = failures = 0;
+            }
+            if (failure) {
+                failures = Math.min(failures + 1, COUNT_MASK);
+            } else {
+                successes = Math.min(successes + 1, COUNT_MASK);
+            }
+            if (buckets.compareAndSet(idx, value, (tag << TAG_SHIFT) | (successes << COUNT_BITS) | failures)) {
+                return;
+            }
+        }
+    }
+
+    private long[] windowCounts(long now) {
+        long tag = Math.floorDiv(now, bucketNanos) & TAG_MASK;
+        long successes = 0, failures = 0;
+        for (int i = 0; i < WINDOW_BUCKETS; i++) {
+            long value = buckets.get(i);
+            long age = (tag - (value >>> TAG_SHIFT)) & TAG_MASK;
+            if (age < WINDOW_BUCKETS) {
+                successes += (value >>> COUNT_BITS) & COUNT_MASK;
+                failures  += value & COUNT_MASK;
+            }
+        }
+        return new long[] {successes, failures};
+    }
+
+    private void resetWindow() {
+        for (int i = 0; i < WINDOW_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+    }
+
+    /**
+     * Permission of the call, bound to the phase of the breaker it was acquired in
+     */
+    public static final class Permit {
+        // Permit of the calls that are not guarded by any breaker
+        static final Permit NONE = new Permit(null);
+        
+        private final CircuitBreaker breaker;
+        
+        Permit(CircuitBreaker breaker) {
+            this.breaker = breaker;
+        }
+        
+        /**
+         * Reports the outcome of the permitted call
+         * @param error
+         *   the error of the call or null if the call completed normally
+         */
+        public void onComplete(Throwable error) {
+            if (null != breaker) {
+                breaker.onComplete(this, error);
+            }
+        }
+        
+        /**
+         * Gives back the permission of the call that was not made, i.e. when the executor rejected it.
+         * No outcome is recorded, the trial call of <code>HALF_OPEN</code> state may be taken again.
+         */
+        public void release() {
+            if (null != breaker) {
+                breaker.release(this);
+            }
+        }
+    }
+
+    static final class Phase {
+        final State state;
+        final long since;
+        final int trials;
+        final int successes;
+        // Shared by all permitted calls of the phase, changes with the state
+        final Permit permit;
+
+        Phase(State state, long since, int trials, int successes, Permit permit) {
+            this.state = state;
+            this.since = since;
+            this.trials = trials;
+            this.successes = successes;
+            this.permit = permit;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<CircuitBreaker, Phase> PHASE =
+        AtomicReferenceFieldUpdater.newUpdater(CircuitBreaker.class, Phase.class, "phase");
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+/**
+ * Signals that the call was rejected by the open {@link CircuitBreaker}.
+ * The stack trace is not filled in, so rejection stays cheap.
+ *
+ * @author vsilaev
+ *
+ */
+public class CircuitBreakerOpenException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitBreakerOpenException() {
+        this(null);
+    }
+
+    public CircuitBreakerOpenException(Throwable lastThrowable) {
+        super("Circuit breaker is open", lastThrowable, false, false);
+    }
+}
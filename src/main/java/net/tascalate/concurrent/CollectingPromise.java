@@ -0,0 +1,189 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import static net.tascalate.concurrent.SharedFunctions.cancelPromise;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.stream.Collector;
+
+/**
+ * Aggregating promise that folds results into the {@link Collector} as they arrive,
+ * so memory is proportional to the accumulator rather than to the number of promises.
+ * <p>Concurrent collectors share the single container; for other collectors results are 
+ * accumulated into striped containers that are combined once all results are available.
+ * 
+ * @author vsilaev
+ *
+ * @param <T>
+ *   a type of the results
+ * @param <A>
+ *   a type of the collector's mutable accumulation container
+ * @param <R>
+ *   a type of the aggregated result
+ */
+class CollectingPromise<T, A, R> extends CompletableFutureWrapper<R> {
+
+    final private Collector<? super T, A, R> collector;
+    final private BiConsumer<A, ? super T> accumulator;
+    final private A sharedContainer;
+    final private Stripe<A>[] stripes;
+    
+    private volatile int resultsCount;
+    private volatile int done;
+    
+    final private boolean cancelRemaining;
+    final private List<? extends CompletionStage<? extends T>> promises;
+
+    CollectingPromise(Collector<? super T, A, R> collector, boolean cancelRemaining, 
+                      List<? extends CompletionStage<? extends T>> promises) {
+        
+        if (null == promises || promises.isEmpty()) {
+            throw new IllegalArgumentException("There are should be at least one promise specified");
+        }
+        this.collector = collector;
+        this.accumulator = collector.accumulator();
+        this.cancelRemaining = cancelRemaining;
+        this.promises = promises;
+        if (collector.characteristics().contains(Collector.Characteristics.CONCURRENT)) {
+            sharedContainer = collector.supplier().get();
+            stripes = null;
+        } else {
+            sharedContainer = null;
+            stripes = newStripes(Math.min(promises.size(), Runtime.getRuntime().availableProcessors()));
+        }
+        setupCompletionHandlers();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (DONE.compareAndSet(this, 0, 1)) {
+            cancelPromises();
+            return super.cancel(mayInterruptIfRunning);
+        } else {
+            return false;
+        }
+    }
+    
+    void onComplete(T result, Throwable error) {
+        if (done != 0) {
+            return;
+        }
+        if (null == error) {
+            try {
+                accumulate(result);
+            } catch (Throwable ex) {
+                onComplete(null, ex);
+                return;
+            }
+            if (RESULTS_COUNT.incrementAndGet(this) == promises.size() && DONE.compareAndSet(this, 0, 1)) {
+                // All accumulators are updated before count is reached
+                R value;
+                try {
+                    value = finish();
+                } catch (Throwable ex) {
+                    delegate.completeExceptionally(ex);
+                    return;
+                }
+                delegate.complete(value);
+            }
+        } else if (DONE.compareAndSet(this, 0, 1)) {
+            delegate.completeExceptionally(MultitargetException.of(error));
+            if (cancelRemaining) {
+                cancelPromises();
+            }
+        }
+    }
+    
+    private void accumulate(T result) {
+        if (null == stripes) {
+            accumulator.accept(sharedContainer, result);
+        } else {
+            Stripe<A> stripe = stripes[(int)Thread.currentThread().getId() & (stripes.length - 1)];
+            synchronized (stripe) {
+                if (null == stripe.container) {
+                    stripe.container = collector.supplier().get();
+                }
+                accumulator.accept(stripe.container, result);
+            }
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private R finish() {
+        A container;
+        if (null == stripes) {
+            container = sharedContainer;
+        } else {
+            container = null;
+            for (Stripe<A> stripe : stripes) {
+                synchronized (stripe) {
+                    if (null == stripe.container) {
+                        continue;
+                    }
+                    container = null == container ? stripe.container : collector.combiner().apply(container, stripe.container);
+                }
+            }
+        }
+        if (collector.characteristics().contains(Collector.Characteristics.IDENTITY_FINISH)) {
+            return (R)container;
+        } else {
+            return collector.finisher().apply(container);
+        }
+    }
+
+    private void setupCompletionHandlers() {
+        for (CompletionStage<? extends T> promise : promises) {
+            if (done != 0) {
+                // Resolved by already completed promises, 
+                // no reason to listen to the rest
+                break;
+            }
+            promise.whenComplete(this::onComplete);
+        }
+    }
+
+    private void cancelPromises() {
+        // Cancellation of already completed promise has no effect
+        for (CompletionStage<? extends T> promise : promises) {
+            cancelPromise(promise, true);
+        }
+    }
+    
+    private static <A> Stripe<A>[] newStripes(int concurrency) {
+        int size = Integer.highestOneBit(Math.max(1, concurrency));
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Stripe<A>[] result = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = new Stripe<>();
+        }
+        return result;
+    }
+    
+    static final class Stripe<A> {
+        A container;
+    }
+    
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<CollectingPromise> RESULTS_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(CollectingPromise.class, "resultsCount");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<CollectingPromise> DONE =
+        AtomicIntegerFieldUpdater.newUpdater(CollectingPromise.class, "done");
+}
@@ -17,7 +17,6 @@ package net.tascalate.concurrent;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The {@link Promise} implementation for intermediate long-running blocking task
@@ -27,38 +26,13 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 class CompletableSubTask<T> extends AbstractCompletableTask<T> {
 
-    static class DelegatingCallable<T> implements Callable<T> {
-
-        final private AtomicReference<Callable<T>> delegateRef = new AtomicReference<>(null);
-
-        void setup(Callable<T> delegate) {
-            boolean updated = delegateRef.compareAndSet(null, delegate);
-            if (!updated) {
-                throw new IllegalStateException("Delegate may be set only once");
-            }
-        }
-
-        @Override
-        public T call() throws Exception {
-            Callable<T> delegate = delegateRef.get();
-            if (null == delegate) {
-                throw new IllegalStateException("Call is not configured");
-            } else {
-                return delegate.call();
-            }
-        }
-
-    }
-
     CompletableSubTask(Executor executor) {
-        super(executor, new DelegatingCallable<T>());
+        super(executor, null);
     }
 
     @Override
     void fireTransition(Callable<T> code) {
-        DelegatingCallable<T> transitionCall = (DelegatingCallable<T>) action;
-        transitionCall.setup(code);
-        task.run();
+        runTransition(code);
     }
 
     @Override
@@ -55,7 +55,7 @@ public class CompletableTask<T> extends AbstractCompletableTask<T> implements Ru
      */
     @Override
     public void run() {
-        task.run();
+        runTransition(action);
     }
 
     /**
@@ -15,18 +15,37 @@
  */
 package net.tascalate.concurrent;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.BiConsumer;
 
+/**
+ * Iterator over results of the promises in the order of their completion.
+ * <p>Settled results are published to the multi-producer / single-consumer ring buffer: completing
+ * promises claim slots with the single atomic increment, the iterating thread is the only consumer.
+ * No more than <code>chunkSize</code> promises are enlisted at once, and new promises are enlisted
+ * only when all previous ones are consumed, so the buffer is never full. Successful results are stored
+ * in the buffer as is, without per-result wrappers. Enlisted promises are tracked only when they should
+ * be cancelled on {@link #close()}.
+ * 
+ * @author vsilaev
+ *
+ * @param <T>
+ *   a type of the results
+ */
 public class CompletionIterator<T> implements Iterator<T>, AutoCloseable {
     
     protected static enum CancelStrategy {
@@ -56,14 +75,26 @@ public class CompletionIterator<T> implements Iterator<T>, AutoCloseable {
         abstract void apply(Set<CompletionStage<?>> enlistedPromises, Iterator<? extends CompletionStage<?>> pendingPromises);
     }
     
+    private static final int MIN_CAPACITY = 16;
+    private static final Object NULL_RESULT = new Object();
+    
     private final int chunkSize;
     private final CancelStrategy cancelStrategy;
     private final Iterator<? extends CompletionStage<? extends T>> pendingPromises;
-    private final BlockingQueue<Result<T>> settledResults;
     private final Set<CompletionStage<?>> enlistedPromises;
+    private final BiConsumer<T, Throwable> onResolved = this::enlistResolved;
+    // Notified when the result is settled, used by push-based consumers
+    private final Runnable onSettled;
     
     private final AtomicInteger inProgress = new AtomicInteger(0);
     
+    // Replaced only when empty and no promise is in progress
+    private volatile AtomicReferenceArray<Object> settledResults;
+    private volatile long producerIndex;
+    private long consumerIndex;
+    private long enlistedCount;
+    private volatile Thread waiter;
+    
     CompletionIterator(Iterator<? extends CompletionStage<? extends T>> pendingValues, int chunkSize) {
         this(pendingValues, chunkSize, CancelStrategy.NONE);
     }
@@ -71,13 +102,21 @@ public class CompletionIterator<T> implements Iterator<T>, AutoCloseable {
     protected CompletionIterator(Iterator<? extends CompletionStage<? extends T>> pendingValues, 
                                  int chunkSize, 
                                  CancelStrategy cancelStrategy) {
+        this(pendingValues, chunkSize, cancelStrategy, null);
+    }
+    
+    CompletionIterator(Iterator<? extends CompletionStage<? extends T>> pendingValues, 
+                       int chunkSize, 
+                       CancelStrategy cancelStrategy,
+                       Runnable onSettled) {
         this.chunkSize        = chunkSize;
+        this.onSettled        = onSettled;
         this.cancelStrategy   = cancelStrategy == null ? CancelStrategy.NONE : cancelStrategy;
         this.pendingPromises  = pendingValues;
-        this.settledResults   = chunkSize > 0 ? new LinkedBlockingQueue<>(chunkSize) 
-                                              : new LinkedBlockingQueue<>(); 
-        
-        this.enlistedPromises = Collections.newSetFromMap(new ConcurrentHashMap<>()); 
+        this.settledResults   = new AtomicReferenceArray<>(capacityFor(chunkSize)); 
+        // No need to track promises that are never cancelled
+        this.enlistedPromises = this.cancelStrategy == CancelStrategy.NONE ? 
+                                null : Collections.newSetFromMap(new ConcurrentHashMap<>()); 
     }
     
     @Override
@@ -87,7 +126,7 @@ public class CompletionIterator<T> implements Iterator<T>, AutoCloseable {
             // Forcibly closed
             return false;
         } else {
-            if (!settledResults.isEmpty()) {
+            if (hasSettled()) {
                 // There are some resolved results available
                 return true; 
             } else {
@@ -110,17 +149,14 @@ public class CompletionIterator<T> implements Iterator<T>, AutoCloseable {
                 // Forcibly closed
                 throw new NoSuchElementException("This sequence was closed");
             } else {
-                if (!settledResults.isEmpty()) {
+                Object settled = pollSettled();
+                if (null != settled) {
                     // There are some resolved results available
-                    return settledResults.poll().get(); 
+                    return unwrap(settled); 
                 } else {
                     if (unprocessed > 0) {
                         // If we are still producing then await for any result...  
-                        try {
-                            return settledResults.take().get();
-                        } catch (InterruptedException ex) {
-                            throw new NoSuchElementException(ex.getMessage());
-                        }
+                        return unwrap(awaitSettled(false, 0L));
                     } else {
                         if (enlistPending()) {
                             // More was enlisted
@@ -135,6 +171,65 @@ public class CompletionIterator<T> implements Iterator<T>, AutoCloseable {
         }
     }
     
+    /**
+     * Returns all results that are already available, up to <code>maxElements</code>, 
+     * waiting for the first one if none is available yet.
+     * <p>The failed result is reported by throwing {@link CompletionException} when it is the first one,
+     * otherwise the batch ends before it.
+     * @param maxElements
+     *   the maximum number of results to return
+     * @return
+     *   the non-empty list of results
+     * @throws NoSuchElementException
+     *   if there are no more results or the iterator is closed
+     */
+    public List<T> nextBatch(int maxElements) {
+        return nextBatch(maxElements, false, 0L);
+    }
+    
+    /**
+     * Returns all results that are already available, up to <code>maxElements</code>, 
+     * waiting up to the <code>timeout</code> for the first one if none is available yet.
+     * @param maxElements
+     *   the maximum number of results to return
+     * @param timeout
+     *   how long to wait for the first result
+     * @param unit
+     *   the unit of the <code>timeout</code>
+     * @return
+     *   the list of results, empty if the timeout elapsed
+     * @throws NoSuchElementException
+     *   if there are no more results or the iterator is closed
+     * @see #nextBatch(int)
+     */
+    public List<T> nextBatch(int maxElements, long timeout, TimeUnit unit) {
+        return nextBatch(maxElements, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+    
+    /**
+     * Moves all results that are already available, up to <code>maxElements</code>, to the <code>target</code>
+     * collection without waiting. Use {@link #hasNext()} to check whether more results are expected.
+     * @param target
+     *   the collection to add results to
+     * @param maxElements
+     *   the maximum number of results to add
+     * @return
+     *   the number of results added
+     * @throws CompletionException
+     *   if the first available result is failed
+     */
+    public int drainTo(Collection<? super T> target, int maxElements) {
+        checkMaxElements(maxElements);
+        int unprocessed = inProgress.get();
+        if (unprocessed < 0) {
+            return 0;
+        }
+        if (unprocessed == 0 && !hasSettled()) {
+            enlistPending();
+        }
+        return drainSettled(target, 0, maxElements);
+    }
+    
     @Override
     public void remove() {
         throw new UnsupportedOperationException();
@@ -143,14 +238,47 @@ public class CompletionIterator<T> implements Iterator<T>, AutoCloseable {
     @Override
     public void close() {
         inProgress.set(Integer.MIN_VALUE);
-        settledResults.clear();
-        cancelStrategy.apply(enlistedPromises, pendingPromises);
+        AtomicReferenceArray<Object> buffer = settledResults;
+        for (int i = buffer.length() - 1; i >= 0; i--) {
+            buffer.lazySet(i, null);
+        }
+        Thread currentWaiter = waiter;
+        if (null != currentWaiter) {
+            LockSupport.unpark(currentWaiter);
+        }
+        cancelStrategy.apply(
+            null == enlistedPromises ? Collections.emptySet() : enlistedPromises, 
+            pendingPromises
+        );
     }
     
     private boolean enlistPending() {
+        // Called by the consumer when all enlisted promises are resolved and consumed
+        if (chunkSize > 0) {
+            return enlistPending(pendingPromises, chunkSize);
+        } else {
+            // Collect everything first to size the buffer before any promise may resolve
+            List<CompletionStage<? extends T>> allPromises = new ArrayList<>();
+            pendingPromises.forEachRemaining(allPromises::add);
+            if (allPromises.size() > settledResults.length()) {
+                settledResults = new AtomicReferenceArray<>(capacityFor(allPromises.size()));
+            }
+            return enlistPending(allPromises.iterator(), Integer.MAX_VALUE);
+        }
+    }
+    
+    /**
+     * Enlists up to <code>maxPromises</code> more promises, the caller is responsible to keep 
+     * the number of {@link #outstanding()} promises within the <code>chunkSize</code>
+     */
+    boolean enlistPending(int maxPromises) {
+        return enlistPending(pendingPromises, maxPromises);
+    }
+    
+    private boolean enlistPending(Iterator<? extends CompletionStage<? extends T>> nextPromises, int maxPromises) {
         boolean enlisted = false;
         int i = 0;
-        while (pendingPromises.hasNext()) {
+        while (i < maxPromises && nextPromises.hasNext()) {
             // +1 before setting completion handler -- 
             // while stage may be completed already
             // we should increment step-by-step 
@@ -159,19 +287,36 @@ public class CompletionIterator<T> implements Iterator<T>, AutoCloseable {
             if (isClosed < 0) {
                 break;
             }
-            CompletionStage<? extends T> nextPromise = pendingPromises.next();
-            enlistedPromises.add(nextPromise);
-            nextPromise.whenComplete(enlistResolved(nextPromise));
+            CompletionStage<? extends T> nextPromise = nextPromises.next();
+            enlistedCount++;
+            if (null == enlistedPromises) {
+                nextPromise.whenComplete(onResolved);
+            } else {
+                enlistedPromises.add(nextPromise);
+                nextPromise.whenComplete(enlistResolved(nextPromise));
+            }
             enlisted = true;
-            
             i++;
-            if (chunkSize > 0 && i >= chunkSize) {
-                break;
-            }
         };  
         return enlisted;
     }
     
+    /**
+     * @return
+     *   the number of enlisted promises whose results are not consumed yet
+     */
+    long outstanding() {
+        return enlistedCount - consumerIndex;
+    }
+    
+    boolean hasPendingPromises() {
+        return pendingPromises.hasNext();
+    }
+    
+    boolean isClosed() {
+        return inProgress.get() < 0;
+    }
+    
     private BiConsumer<T, Throwable> enlistResolved(CompletionStage<? extends T> promise) {
         return (v, ex) -> {
             enlistedPromises.remove(promise);
@@ -180,30 +325,154 @@ public class CompletionIterator<T> implements Iterator<T>, AutoCloseable {
     }
     
     private void enlistResolved(T resolvedValue, Throwable ex) {
-        try {
-            settledResults.put(new Result<>(
-                resolvedValue, ex == null ? null : SharedFunctions.wrapCompletionException(ex))
-            );
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e); // Shouldn't happen for the queue with an unlimited size
+        Object settled;
+        if (null != ex) {
+            settled = new Failure(SharedFunctions.wrapCompletionException(ex));
+        } else {
+            settled = null == resolvedValue ? NULL_RESULT : resolvedValue;
         }
+        long index = PRODUCER_INDEX.getAndIncrement(this);
+        AtomicReferenceArray<Object> buffer = settledResults;
+        // Volatile write, must be visible before the waiter is checked
+        buffer.set((int)index & (buffer.length() - 1), settled);
         inProgress.decrementAndGet();
+        Thread currentWaiter = waiter;
+        if (null != currentWaiter) {
+            LockSupport.unpark(currentWaiter);
+        }
+        if (null != onSettled) {
+            onSettled.run();
+        }
     }
     
-    static class Result<T> {
-        private final T result;
-        private final CompletionException error;
-        
-        Result(T result, CompletionException error) {
-            this.result = result;
-            this.error  = error; 
+    private List<T> nextBatch(int maxElements, boolean timed, long deadline) {
+        checkMaxElements(maxElements);
+        List<T> batch = new ArrayList<>(Math.min(maxElements, MIN_CAPACITY));
+        while (true) {
+            int unprocessed = inProgress.get();
+            if (unprocessed < 0) {
+                // Forcibly closed
+                throw new NoSuchElementException("This sequence was closed");
+            } 
+            if (drainSettled(batch, 0, maxElements) > 0) {
+                return batch;
+            }
+            if (unprocessed > 0) {
+                Object settled = awaitSettled(timed, deadline);
+                if (null != settled) {
+                    batch.add(unwrap(settled));
+                    // The batch is not empty, failure must not be thrown now
+                    drainSettled(batch, 1, maxElements);
+                }
+                return batch;
+            } else if (!enlistPending()) {
+                throw new NoSuchElementException();
+            }
         }
-        
-        T get() {
-            if (null != error) {
-                throw error;
+    }
+    
+    private int drainSettled(Collection<? super T> target, int batchSize, int maxElements) {
+        AtomicReferenceArray<Object> buffer = settledResults;
+        int mask = buffer.length() - 1;
+        int count = batchSize;
+        while (count < maxElements) {
+            int idx = (int)consumerIndex & mask;
+            Object settled = buffer.get(idx);
+            if (null == settled || (count > 0 && settled instanceof Failure)) {
+                // Failure is reported by the next call
+                break;
             }
-            return result;
+            buffer.lazySet(idx, null);
+            consumerIndex++;
+            target.add(unwrap(settled));
+            count++;
         }
+        return count - batchSize;
     }
+    
+    private boolean hasSettled() {
+        AtomicReferenceArray<Object> buffer = settledResults;
+        return null != buffer.get((int)consumerIndex & (buffer.length() - 1));
+    }
+    
+    Object pollSettled() {
+        AtomicReferenceArray<Object> buffer = settledResults;
+        int idx = (int)consumerIndex & (buffer.length() - 1);
+        Object settled = buffer.get(idx);
+        if (null != settled) {
+            buffer.lazySet(idx, null);
+            consumerIndex++;
+        }
+        return settled;
+    }
+    
+    private Object awaitSettled(boolean timed, long deadline) {
+        Object settled;
+        while (null == (settled = pollSettled())) {
+            if (inProgress.get() < 0) {
+                throw new NoSuchElementException("This sequence was closed");
+            }
+            long remaining = 0;
+            if (timed && (remaining = deadline - System.nanoTime()) <= 0) {
+                return null;
+            }
+            waiter = Thread.currentThread();
+            // Re-check after publishing the waiter, the result might be published before
+            settled = pollSettled();
+            if (null != settled) {
+                waiter = null;
+                break;
+            }
+            if (timed) {
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+            waiter = null;
+            if (Thread.interrupted()) {
+                throw new NoSuchElementException("Interrupted while waiting for the next result");
+            }
+        }
+        return settled;
+    }
+    
+    @SuppressWarnings("unchecked")
+    T unwrap(Object settled) {
+        if (settled == NULL_RESULT) {
+            return null;
+        } else if (settled instanceof Failure) {
+            throw ((Failure)settled).error;
+        } else {
+            return (T)settled;
+        }
+    }
+    
+    private static void checkMaxElements(int maxElements) {
+        if (maxElements <= 0) {
+            throw new IllegalArgumentException("Max elements must be positive: " + maxElements);
+        }
+    }
+    
+    private static int capacityFor(int size) {
+        if (size <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        if (size > (1 << 30)) {
+            throw new IllegalArgumentException("Too many promises to track: " + size);
+        }
+        // Next power of two
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+    
+    static final class Failure {
+        final CompletionException error;
+        
+        Failure(CompletionException error) {
+            this.error = error;
+        }
+    }
+    
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<CompletionIterator> PRODUCER_INDEX =
+        AtomicLongFieldUpdater.newUpdater(CompletionIterator.class, "producerIndex");
 }
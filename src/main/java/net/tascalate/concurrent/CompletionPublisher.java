@@ -0,0 +1,327 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * <code>java.util.concurrent.Flow.Publisher</code> of the promises results in the order of their completion.
+ * <p>Flow API (Java 9+) is accessed reflectively, so the library still targets Java 8: the publisher and
+ * its subscriptions are dynamic proxies, the subscriber is called via method handles.
+ * <p>The publisher is built on top of {@link CompletionIterator}: promises are enlisted only when the subscriber
+ * requested more results than are outstanding, and at most <code>chunkSize</code> promises are awaited at once.
+ * The publisher supports a single subscriber, the source promises can't be iterated twice.
+ *
+ * @author vsilaev
+ *
+ * @param <T>
+ *   a type of the results
+ */
+final class CompletionPublisher<T> implements InvocationHandler {
+    static final int DEFAULT_CHUNK_SIZE = 256;
+
+    private static final Class<?> PUBLISHER;
+    private static final Class<?> SUBSCRIPTION;
+    private static final MethodHandle ON_SUBSCRIBE;
+    private static final MethodHandle ON_NEXT;
+    private static final MethodHandle ON_ERROR;
+    private static final MethodHandle ON_COMPLETE;
+
+    static {
+        Class<?> publisher = null;
+        Class<?> subscription = null;
+        MethodHandle onSubscribe = null;
+        MethodHandle onNext = null;
+        MethodHandle onError = null;
+        MethodHandle onComplete = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            publisher = Class.forName("java.util.concurrent.Flow$Publisher");
+            subscription = Class.forName("java.util.concurrent.Flow$Subscription");
+            Class<?> subscriber = Class.forName("java.util.concurrent.Flow$Subscriber");
+            onSubscribe = lookup.findVirtual(subscriber, "onSubscribe", MethodType.methodType(void.class, subscription));
+            onNext = lookup.findVirtual(subscriber, "onNext", MethodType.methodType(void.class, Object.class));
+            onError = lookup.findVirtual(subscriber, "onError", MethodType.methodType(void.class, Throwable.class));
+            onComplete = lookup.findVirtual(subscriber, "onComplete", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException ex) {
+            // Java 8, no Flow API
+            publisher = null;
+        }
+        PUBLISHER = publisher;
+        SUBSCRIPTION = subscription;
+        ON_SUBSCRIBE = onSubscribe;
+        ON_NEXT = onNext;
+        ON_ERROR = onError;
+        ON_COMPLETE = onComplete;
+    }
+
+    private final Iterator<? extends CompletionStage<? extends T>> pendingPromises;
+    private final int chunkSize;
+    private final CompletionIterator.CancelStrategy cancelStrategy;
+
+    private volatile int subscribed;
+
+    private CompletionPublisher(Iterator<? extends CompletionStage<? extends T>> pendingPromises,
+                                int chunkSize,
+                                CompletionIterator.CancelStrategy cancelStrategy) {
+        this.pendingPromises = pendingPromises;
+        this.chunkSize = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+        this.cancelStrategy = cancelStrategy;
+    }
+
+    static boolean isSupported() {
+        return null != PUBLISHER;
+    }
+
+    static <T> Object create(Iterator<? extends CompletionStage<? extends T>> pendingPromises,
+                             int chunkSize,
+                             CompletionIterator.CancelStrategy cancelStrategy) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Flow API is not supported by this Java runtime");
+        }
+        return newProxy(PUBLISHER, new CompletionPublisher<>(pendingPromises, chunkSize, cancelStrategy));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args);
+        }
+        // Publisher.subscribe(Subscriber) is the only method
+        Object subscriber = Objects.requireNonNull(args[0], "Subscriber must not be null");
+        if (SUBSCRIBED.compareAndSet(this, 0, 1)) {
+            new Subscription<T>(subscriber, pendingPromises, chunkSize, cancelStrategy).start();
+        } else {
+            Subscription<T> rejected = new Subscription<T>(subscriber, null, chunkSize, cancelStrategy);
+            rejected.cancelled = true;
+            invokeSubscriber(ON_SUBSCRIBE, subscriber, rejected.proxy);
+            invokeSubscriber(ON_ERROR, subscriber, new IllegalStateException("Publisher allows only one subscriber"));
+        }
+        return null;
+    }
+
+    static Object newProxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(CompletionPublisher.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    static Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                return Proxy.getInvocationHandler(proxy).getClass().getSimpleName() + "@" +
+                       Integer.toHexString(System.identityHashCode(proxy));
+        }
+    }
+
+    static void invokeSubscriber(MethodHandle method, Object subscriber) {
+        try {
+            method.invoke(subscriber);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    static void invokeSubscriber(MethodHandle method, Object subscriber, Object arg) {
+        try {
+            method.invoke(subscriber, arg);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            return (RuntimeException)ex;
+        } else if (ex instanceof Error) {
+            throw (Error)ex;
+        } else {
+            return new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Subscription that emits the results of the promises enlisted on demand.
+     * Signals to the subscriber are serialized with the work-in-progress counter.
+     */
+    static final class Subscription<T> implements InvocationHandler {
+        private final Object subscriber;
+        private final Object proxy;
+        private final int chunkSize;
+        private final CompletionIterator<T> results;
+
+        private volatile long requested;
+        private volatile int wip;
+        private volatile boolean cancelled;
+        private volatile boolean invalidRequest;
+        private long emitted;
+
+        Subscription(Object subscriber,
+                     Iterator<? extends CompletionStage<? extends T>> pendingPromises,
+                     int chunkSize,
+                     CompletionIterator.CancelStrategy cancelStrategy) {
+            this.subscriber = subscriber;
+            this.proxy = newProxy(SUBSCRIPTION, this);
+            this.chunkSize = chunkSize;
+            this.results = null == pendingPromises ? null :
+                new CompletionIterator<>(pendingPromises, chunkSize, cancelStrategy, this::drain);
+        }
+
+        void start() {
+            invokeSubscriber(ON_SUBSCRIBE, subscriber, proxy);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args);
+            }
+            if ("request".equals(method.getName())) {
+                request((Long)args[0]);
+            } else {
+                cancel();
+            }
+            return null;
+        }
+
+        void request(long n) {
+            if (n <= 0) {
+                invalidRequest = true;
+            } else {
+                while (true) {
+                    long current = requested;
+                    long next = current + n;
+                    if (next < 0) {
+                        // Overflow, unbounded demand
+                        next = Long.MAX_VALUE;
+                    }
+                    if (REQUESTED.compareAndSet(this, current, next)) {
+                        break;
+                    }
+                }
+            }
+            drain();
+        }
+
+        void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                // Cancel enlisted promises in the drain loop, the iterator is not thread-safe
+                drain();
+            }
+        }
+
+        private void drain() {
+            if (WIP.getAndIncrement(this) != 0) {
+                // Running drain will repeat
+                return;
+            }
+            do {
+                if (null != results && !results.isClosed()) {
+                    try {
+                        emit();
+                    } catch (RuntimeException | Error ex) {
+                        // Subscriber must not throw, stop emitting
+                        cancelled = true;
+                        results.close();
+                        throw ex;
+                    }
+                }
+            } while (WIP.decrementAndGet(this) != 0);
+        }
+
+        private void emit() {
+            if (cancelled) {
+                results.close();
+                return;
+            }
+            if (invalidRequest) {
+                terminate(new IllegalArgumentException("Requested number of results must be positive"));
+                return;
+            }
+            long demand = requested;
+            while (emitted < demand) {
+                Object settled = results.pollSettled();
+                if (null == settled) {
+                    break;
+                }
+                T value;
+                try {
+                    value = results.unwrap(settled);
+                } catch (RuntimeException ex) {
+                    terminate(SharedFunctions.unwrapCompletionException(ex));
+                    return;
+                }
+                emitted++;
+                invokeSubscriber(ON_NEXT, subscriber, value);
+                if (cancelled) {
+                    results.close();
+                    return;
+                }
+            }
+            if (emitted == demand) {
+                // Completion is signalled regardless of demand, otherwise don't enlist without demand.
+                // Checking the source takes at most one promise ahead of a lazy source
+                if (results.outstanding() == 0 && !results.hasPendingPromises()) {
+                    complete();
+                }
+                return;
+            }
+            long enlist = Math.min(demand - emitted, chunkSize) - results.outstanding();
+            if (enlist > 0 && results.enlistPending((int)enlist)) {
+                // Synchronously resolved promises repeat the drain loop
+                return;
+            }
+            if (results.outstanding() == 0 && !results.hasPendingPromises()) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            results.close();
+            invokeSubscriber(ON_COMPLETE, subscriber);
+        }
+
+        private void terminate(Throwable error) {
+            cancelled = true;
+            results.close();
+            invokeSubscriber(ON_ERROR, subscriber, error);
+        }
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicLongFieldUpdater<Subscription> REQUESTED =
+            AtomicLongFieldUpdater.newUpdater(Subscription.class, "requested");
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Subscription> WIP =
+            AtomicIntegerFieldUpdater.newUpdater(Subscription.class, "wip");
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<CompletionPublisher> SUBSCRIBED =
+        AtomicIntegerFieldUpdater.newUpdater(CompletionPublisher.class, "subscribed");
+}
@@ -164,15 +164,7 @@ public class ConfigurableDependentPromise<T> implements DependentPromise<T> {
     
     @Override
     public DependentPromise<T> orTimeout(Duration duration, boolean cancelOnTimeout, boolean enlistOrigin) {
-        Promise<? extends Try<T>> onTimeout = Timeouts.delayed(null, duration);
-        DependentPromise<T> result = 
-        this.thenApply(Try::success, enlistOrigin)
-            .exceptionally(Try::failure, true)
-            // Use *Async to execute on default "this" executor
-            .applyToEitherAsync(onTimeout, v -> Try.doneOrTimeout(v, duration), PromiseOrigin.ALL);
-        
-        result.whenComplete(Timeouts.timeoutsCleanup(this, onTimeout, cancelOnTimeout));
-        return result;
+        return withTimeout(duration, cancelOnTimeout, enlistOrigin, () -> Try.doneOrTimeout(null, duration));
     }
     
     @Override
@@ -182,15 +174,7 @@ public class ConfigurableDependentPromise<T> implements DependentPromise<T> {
     
     @Override
     public DependentPromise<T> onTimeout(T value, Duration duration, boolean cancelOnTimeout, boolean enlistOrigin) {
-        Promise<Try<T>> onTimeout = Timeouts.delayed(Try.success(value), duration);
-        DependentPromise<T> result = 
-        this.thenApply(Try::success, enlistOrigin)
-            .exceptionally(Try::failure, true)
-            // Use *Async to execute on default "this" executor
-            .applyToEitherAsync(onTimeout, Try::done, PromiseOrigin.ALL);
-
-        result.whenComplete(Timeouts.timeoutsCleanup(this, onTimeout, cancelOnTimeout));
-        return result;
+        return withTimeout(duration, cancelOnTimeout, enlistOrigin, () -> value);
     }
     
     // All onTimeout overloads delegate to this method
@@ -201,18 +185,17 @@ public class ConfigurableDependentPromise<T> implements DependentPromise<T> {
 
     @Override
     public DependentPromise<T> onTimeout(Supplier<? extends T> supplier, Duration duration, boolean cancelOnTimeout, boolean enlistOrigin) {
-        // timeout converted to supplier
-        Promise<Supplier<Try<T>>> onTimeout = Timeouts.delayed(Try.with(supplier), duration);
-        
-        DependentPromise<T> result = 
-        this.thenApply(Try::success, enlistOrigin)
-            .exceptionally(Try::failure, true)
-            .thenApply(SharedFunctions::supply, true)
-            // Use *Async to execute on default "this" executor
-            .applyToEitherAsync(onTimeout, s -> s.get().done(),  PromiseOrigin.ALL);
-        
-        result.whenComplete(Timeouts.timeoutsCleanup(this, onTimeout, cancelOnTimeout));
-        return result;
+        return withTimeout(duration, cancelOnTimeout, enlistOrigin, supplier);
+    }
+    
+    private DependentPromise<T> withTimeout(Duration duration, boolean cancelOnTimeout, boolean enlistOrigin, 
+                                            Supplier<? extends T> onTimeout) {
+        // Single subscriber races the single timer entry and
+        // completes the result directly
+        return wrap(
+            Timeouts.race(delegate, duration, cancelOnTimeout ? () -> cancel(true) : null, onTimeout), 
+            origin(enlistOrigin)
+        );
     }
     
     public <U> DependentPromise<U> thenApply(Function<? super T, ? extends U> fn, boolean enlistOrigin) {
@@ -25,11 +25,13 @@ package net.tascalate.concurrent;
 import java.time.Duration;
 import java.util.concurrent.TimeUnit;
 
+import net.tascalate.concurrent.delays.AdaptiveDelayPolicy;
 import net.tascalate.concurrent.delays.BoundedMaxDelayPolicy;
 import net.tascalate.concurrent.delays.BoundedMinDelayPolicy;
 import net.tascalate.concurrent.delays.ExponentialDelayPolicy;
 import net.tascalate.concurrent.delays.FirstRetryNoDelayPolicy;
 import net.tascalate.concurrent.delays.FixedIntervalDelayPolicy;
+import net.tascalate.concurrent.delays.LatencyHistogram;
 import net.tascalate.concurrent.delays.ProportionalRandomDelayPolicy;
 import net.tascalate.concurrent.delays.UniformRandomDelayPolicy;
 
@@ -71,6 +73,29 @@ public interface DelayPolicy<T> {
     	return exponential(Duration.ofMillis(initialDelayMillis), multiplier);
     }
     
+    /**
+     * Creates a delay policy that follows the observed call latency: the delay is the latency at the
+     * <code>percentile</code> of the histogram multiplied by the <code>multiplier</code>. No delay is
+     * given until the histogram collects enough samples.
+     * @param <T>
+     *   a type of the result of the retried call
+     * @param histogram
+     *   the histogram of observed latencies, see {@link RetryPolicy#withLatencyHistogram(LatencyHistogram)}
+     * @param percentile
+     *   the percentile in range (0, 1]
+     * @param multiplier
+     *   the positive multiplier applied to the latency
+     * @return
+     *   the adaptive delay policy
+     */
+    public static <T> DelayPolicy<T> adaptive(LatencyHistogram histogram, double percentile, double multiplier) {
+        return new AdaptiveDelayPolicy<>(INVALID, histogram, percentile, multiplier);
+    }
+    
+    default DelayPolicy<T> withAdaptiveDelay(LatencyHistogram histogram, double percentile, double multiplier) {
+        return new AdaptiveDelayPolicy<>(this, histogram, percentile, multiplier);
+    }
+    
     default DelayPolicy<T> withUniformJitter() {
         return new UniformRandomDelayPolicy<>(this);
     }
@@ -15,6 +15,7 @@
  */
 package net.tascalate.concurrent;
 
+import java.util.Set;
 import java.util.concurrent.CompletionStage;
 import java.util.function.Function;
 
@@ -38,6 +39,17 @@ class ExtraCancellationPromise<T> extends AbstractPromiseDecorator<T, Promise<T>
         }
     }
     
+    @Override
+    public DependentPromise<T> dependent() {
+        // Delegate's dependent() would bypass the extra cancellation code
+        return DependentPromise.from(this);
+    }
+
+    @Override
+    public DependentPromise<T> dependent(Set<PromiseOrigin> defaultEnlistOptions) {
+        return DependentPromise.from(this, defaultEnlistOptions);
+    }
+    
     @Override
     protected <U> Promise<U> wrap(CompletionStage<U> original) {
         return (Promise<U>)original;
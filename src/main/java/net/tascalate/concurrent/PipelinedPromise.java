@@ -0,0 +1,257 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import static net.tascalate.concurrent.SharedFunctions.cancelPromise;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+/**
+ * Promise that processes values with the sliding window of the fixed size: 
+ * exactly <code>windowSize</code> spawned promises are in flight and the next
+ * one is spawned as soon as any of them is completed. Results are folded with the 
+ * {@link Collector} in the order of completion.
+ * <p>In batched mode the next batch of <code>windowSize</code> values is spawned only when 
+ * all promises of the previous batch are completed, and results of the batch are folded 
+ * in the encounter order.
+ * <p>All the work with the source iterator and the collector container is serialized
+ * by the drain loop, so promises that complete synchronously do not cause recursion.
+ * 
+ * @author vsilaev
+ *
+ * @param <T>
+ *   a type of the values and results
+ * @param <A>
+ *   a type of the collector's mutable accumulation container
+ * @param <R>
+ *   a type of the aggregated result
+ */
+class PipelinedPromise<T, A, R> extends CompletableFutureWrapper<R> {
+    
+    final private Iterator<? extends T> values;
+    final private int windowSize;
+    final private Function<? super T, CompletionStage<? extends T>> spawner;
+    final private Collector<T, A, R> downstream;
+    final private Executor downstreamExecutor;
+    final private boolean batched;
+    
+    final private Set<CompletionStage<? extends T>> inFlight = ConcurrentHashMap.newKeySet();
+    final private Queue<Completion<T>> completions = new ConcurrentLinkedQueue<>();
+    
+    private volatile int wip;
+    private volatile int done;
+    
+    // Accessed by the drain loop only
+    private A container;
+    private int active;
+    private boolean exhausted;
+    private Object[] batchResults;
+    private int batchSize;
+    // Promise spawned by the caller before the drain loop is started
+    private CompletionStage<? extends T> head;
+
+    PipelinedPromise(Iterator<? extends T> values,
+                     int windowSize,
+                     Function<? super T, CompletionStage<? extends T>> spawner,
+                     Collector<T, A, R> downstream,
+                     Executor downstreamExecutor,
+                     boolean batched) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+        }
+        this.values = values;
+        this.windowSize = windowSize;
+        this.spawner = spawner;
+        this.downstream = downstream;
+        this.downstreamExecutor = downstreamExecutor;
+        this.batched = batched;
+    }
+    
+    PipelinedPromise<T, A, R> start() {
+        signal();
+        return this;
+    }
+    
+    PipelinedPromise<T, A, R> start(CompletionStage<? extends T> head) {
+        this.head = head;
+        return start();
+    }
+    
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (DONE.compareAndSet(this, 0, 1)) {
+            cancelInFlight();
+            return super.cancel(mayInterruptIfRunning);
+        } else {
+            return false;
+        }
+    }
+    
+    private void onComplete(CompletionStage<? extends T> promise, int idx, T result, Throwable error) {
+        completions.add(new Completion<>(promise, idx, result, error));
+        signal();
+    }
+    
+    private void signal() {
+        if (WIP.getAndIncrement(this) != 0) {
+            // Drain loop is active and will pick up changes
+            return;
+        }
+        if (null == downstreamExecutor) {
+            drain();
+        } else {
+            try {
+                downstreamExecutor.execute(this::drain);
+            } catch (Throwable ex) {
+                fail(ex);
+            }
+        }
+    }
+    
+    private void drain() {
+        int missed = 1;
+        do {
+            try {
+                drainOnce();
+            } catch (Throwable ex) {
+                fail(ex);
+            }
+            missed = WIP.addAndGet(this, -missed);
+        } while (missed != 0);
+    }
+    
+    private void drainOnce() {
+        if (done != 0) {
+            completions.clear();
+            return;
+        }
+        if (null == container) {
+            container = downstream.supplier().get();
+            if (batched) {
+                batchResults = new Object[windowSize];
+            }
+        }
+        Completion<T> completion;
+        while (null != (completion = completions.poll())) {
+            inFlight.remove(completion.promise);
+            active--;
+            if (null != completion.error) {
+                fail(batched ? batchError(completion.idx, completion.error) : completion.error);
+                return;
+            }
+            if (batched) {
+                batchResults[completion.idx] = completion.result;
+            } else {
+                downstream.accumulator().accept(container, completion.result);
+            }
+        }
+        if (batched) {
+            if (active > 0) {
+                // Wait for the whole batch
+                return;
+            }
+            if (batchSize > 0) {
+                accumulateBatch();
+            }
+        }
+        while (!exhausted && active < windowSize) {
+            CompletionStage<? extends T> promise;
+            if (null != head) {
+                promise = head;
+                head = null;
+            } else if (values.hasNext()) {
+                promise = spawner.apply(values.next());
+            } else {
+                exhausted = true;
+                break;
+            }
+            inFlight.add(promise);
+            active++;
+            int idx = batched ? batchSize++ : -1;
+            // Synchronous completion just enqueues result for this loop
+            promise.whenComplete((r, e) -> onComplete(promise, idx, r, e));
+            if (done != 0) {
+                // Cancelled concurrently
+                cancelPromise(promise, true);
+                return;
+            }
+        }
+        if (exhausted && active == 0 && completions.isEmpty() && DONE.compareAndSet(this, 0, 1)) {
+            delegate.complete(downstream.finisher().apply(container));
+        }
+    }
+    
+    private void accumulateBatch() {
+        for (int i = 0; i < batchSize; i++) {
+            @SuppressWarnings("unchecked")
+            T result = (T)batchResults[i];
+            downstream.accumulator().accept(container, result);
+            batchResults[i] = null;
+        }
+        batchSize = 0;
+    }
+    
+    private Throwable batchError(int idx, Throwable error) {
+        // Report error the same way as Promises.all over the batch does
+        Throwable[] errors = new Throwable[batchSize];
+        errors[idx] = error;
+        return new MultitargetException(Arrays.asList(errors));
+    }
+    
+    private void fail(Throwable error) {
+        if (DONE.compareAndSet(this, 0, 1)) {
+            delegate.completeExceptionally(error);
+            cancelInFlight();
+        }
+    }
+    
+    private void cancelInFlight() {
+        for (CompletionStage<? extends T> promise : inFlight) {
+            cancelPromise(promise, true);
+        }
+    }
+    
+    static final class Completion<T> {
+        final CompletionStage<? extends T> promise;
+        final int idx;
+        final T result;
+        final Throwable error;
+        
+        Completion(CompletionStage<? extends T> promise, int idx, T result, Throwable error) {
+            this.promise = promise;
+            this.idx = idx;
+            this.result = result;
+            this.error = error;
+        }
+    }
+    
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<PipelinedPromise> WIP =
+        AtomicIntegerFieldUpdater.newUpdater(PipelinedPromise.class, "wip");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<PipelinedPromise> DONE =
+        AtomicIntegerFieldUpdater.newUpdater(PipelinedPromise.class, "done");
+}
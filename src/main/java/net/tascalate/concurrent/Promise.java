@@ -173,6 +173,16 @@ public interface Promise<T> extends Future<T>, CompletionStage<T> {
         return DependentPromise.from(this, defaultEnlistOptions);
     }
     
+    /**
+     * Returns a {@link Promise} that uses the <code>executor</code> for async continuations
+     * scheduled without explicit executor. Wrap the executor with {@link TaskExecutors#withAffinity(Executor)}
+     * to keep continuations on the worker thread that completed the previous stage.
+     * 
+     * @param executor
+     *   the default executor of async continuations
+     * @return
+     *   the promise bound to the executor
+     */
     default Promise<T> defaultAsyncOn(Executor executor) {
         return new ExecutorBoundPromise<>(this, executor);
     }
@@ -16,10 +16,7 @@
 package net.tascalate.concurrent;
 
 import static net.tascalate.concurrent.SharedFunctions.cancelPromise;
-import static net.tascalate.concurrent.SharedFunctions.selectFirst;
 
-import java.time.Duration;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -33,13 +30,8 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executor;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.function.Supplier;
 import java.util.stream.Collector;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -178,6 +170,103 @@ public final class Promises {
         return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, 0), false)
                             .onClose(iterator::close); 
     }
+    
+    public static <T> Stream<List<T>> streamCompletionBatches(Stream<? extends CompletionStage<? extends T>> pendingPromises, 
+                                                              int chunkSize, int maxBatchSize) {
+        return streamCompletionBatches(pendingPromises, chunkSize, maxBatchSize, Cancel.ENLISTED);
+    }
+    
+    /**
+     * Streams results of the promises in the order of their completion, every element of the stream 
+     * is a batch of all results available at the moment, up to <code>maxBatchSize</code>. 
+     * The stream waits only when no result is available.
+     * @param <T>
+     *   a type of the results
+     * @param pendingPromises
+     *   the promises to stream results of
+     * @param chunkSize
+     *   the maximum number of promises awaited at once, zero or negative to await all
+     * @param maxBatchSize
+     *   the maximum number of results in the batch
+     * @param cancelOption
+     *   what promises to cancel when the stream is closed
+     * @return
+     *   the stream of result batches
+     */
+    public static <T> Stream<List<T>> streamCompletionBatches(Stream<? extends CompletionStage<? extends T>> pendingPromises, 
+                                                              int chunkSize, int maxBatchSize, Cancel cancelOption) {
+        return streamCompletionBatches(pendingPromises.iterator(), chunkSize, maxBatchSize, cancelOption);
+    }
+    
+    public static <T> Stream<List<T>> streamCompletionBatches(Iterable<? extends CompletionStage<? extends T>> pendingPromises, 
+                                                              int chunkSize, int maxBatchSize) {
+        return streamCompletionBatches(pendingPromises, chunkSize, maxBatchSize, Cancel.ENLISTED);
+    }
+    
+    public static <T> Stream<List<T>> streamCompletionBatches(Iterable<? extends CompletionStage<? extends T>> pendingPromises, 
+                                                              int chunkSize, int maxBatchSize, Cancel cancelOption) {
+        return streamCompletionBatches(pendingPromises.iterator(), chunkSize, maxBatchSize, cancelOption);
+    }
+    
+    private static <T> Stream<List<T>> streamCompletionBatches(Iterator<? extends CompletionStage<? extends T>> pendingPromises, 
+                                                               int chunkSize, int maxBatchSize, Cancel cancelOption) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Max batch size must be positive: " + maxBatchSize);
+        }
+        CompletionIterator<T> iterator = new CompletionIterator<>(pendingPromises, chunkSize, cancelOption.strategy);
+        Iterator<List<T>> batches = new Iterator<List<T>>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+            
+            @Override
+            public List<T> next() {
+                return iterator.nextBatch(maxBatchSize);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, 0), false)
+                            .onClose(iterator::close); 
+    }
+
+    public static <T> Object publishCompletions(Stream<? extends CompletionStage<? extends T>> pendingPromises, 
+                                                int chunkSize) {
+        return publishCompletions(pendingPromises, chunkSize, Cancel.ENLISTED);
+    }
+    
+    /**
+     * Creates <code>java.util.concurrent.Flow.Publisher&lt;T&gt;</code> that emits results of the promises 
+     * in the order of their completion. The promises are awaited only when the subscriber requested more results, 
+     * no more than <code>chunkSize</code> at once. Failed promise terminates the subscription with its error.
+     * The publisher allows a single subscriber. Requires Java 9 or above, the return type is <code>Object</code> 
+     * to keep the library compatible with Java 8, cast it to <code>Flow.Publisher&lt;T&gt;</code>.
+     * @param <T>
+     *   a type of the results
+     * @param pendingPromises
+     *   the promises to publish results of
+     * @param chunkSize
+     *   the maximum number of promises awaited at once, zero or negative to use the default
+     * @param cancelOption
+     *   what promises to cancel when the subscription is cancelled or terminated 
+     * @return
+     *   the <code>java.util.concurrent.Flow.Publisher&lt;T&gt;</code> instance
+     * @throws UnsupportedOperationException
+     *   if the Java runtime doesn't support Flow API
+     */
+    public static <T> Object publishCompletions(Stream<? extends CompletionStage<? extends T>> pendingPromises, 
+                                                int chunkSize, Cancel cancelOption) {
+        return CompletionPublisher.create(pendingPromises.iterator(), chunkSize, cancelOption.strategy);
+    }
+    
+    public static <T> Object publishCompletions(Iterable<? extends CompletionStage<? extends T>> pendingPromises, 
+                                                int chunkSize) {
+        return publishCompletions(pendingPromises, chunkSize, Cancel.ENLISTED);
+    }
+    
+    public static <T> Object publishCompletions(Iterable<? extends CompletionStage<? extends T>> pendingPromises, 
+                                                int chunkSize, Cancel cancelOption) {
+        return CompletionPublisher.create(pendingPromises.iterator(), chunkSize, cancelOption.strategy);
+    }
 
     public static <T, A, R> Promise<R> partitioned(Iterable<? extends T> values, 
                                                    int batchSize, 
@@ -210,30 +299,133 @@ public final class Promises {
     }
     
     
+    /**
+     * <p>Returns a promise that is resolved when all <code>values</code> are processed by the
+     * promises created with <code>spawner</code>, keeping exactly <code>windowSize</code> promises in flight.
+     * <p>Unlike {@link Promises#partitioned(Iterable, int, Function, Collector)} the next value is spawned as soon as 
+     * any running promise is completed rather than when the whole batch is completed, so single slow promise 
+     * does not stall the rest. Results are accumulated with <code>downstream</code> collector in the order of 
+     * completion, so the collector should not depend on the encounter order.
+     * <p>When any spawned promise is completed exceptionally the resulting promise is resolved faulty and all 
+     * remaining in-flight promises are cancelled; the same happens when the resulting promise is cancelled.
+     * @param <T>
+     *   a type of the values and results
+     * @param <A>
+     *   a type of the collector's mutable accumulation container
+     * @param <R>
+     *   a type of the aggregated result
+     * @param values
+     *   the values to process
+     * @param windowSize
+     *   the maximum number of promises in flight
+     * @param spawner
+     *   the function that creates a promise to process the value
+     * @param downstream
+     *   the collector to accumulate results
+     * @return
+     *   a combined promise
+     */
+    public static <T, A, R> Promise<R> pipelined(Iterable<? extends T> values, 
+                                                 int windowSize, 
+                                                 Function<? super T, CompletionStage<? extends T>> spawner, 
+                                                 Collector<T, A, R> downstream) {
+        return pipelined(values.iterator(), windowSize, spawner, downstream, null);
+    }
+    
+    /**
+     * <p>Returns a promise that is resolved when all <code>values</code> are processed by the
+     * promises created with <code>spawner</code>, keeping exactly <code>windowSize</code> promises in flight.
+     * <p>The same as {@link Promises#pipelined(Iterable, int, Function, Collector)} but the source is consumed,
+     * promises are spawned and results are accumulated on the <code>downstreamExecutor</code>.
+     * @param <T>
+     *   a type of the values and results
+     * @param <A>
+     *   a type of the collector's mutable accumulation container
+     * @param <R>
+     *   a type of the aggregated result
+     * @param values
+     *   the values to process
+     * @param windowSize
+     *   the maximum number of promises in flight
+     * @param spawner
+     *   the function that creates a promise to process the value
+     * @param downstream
+     *   the collector to accumulate results
+     * @param downstreamExecutor
+     *   the executor to consume values and accumulate results
+     * @return
+     *   a combined promise
+     */
+    public static <T, A, R> Promise<R> pipelined(Iterable<? extends T> values, 
+                                                 int windowSize, 
+                                                 Function<? super T, CompletionStage<? extends T>> spawner, 
+                                                 Collector<T, A, R> downstream,
+                                                 Executor downstreamExecutor) {
+        return pipelined(values.iterator(), windowSize, spawner, downstream, Objects.requireNonNull(downstreamExecutor));
+    }
+    
+    public static <T, A, R> Promise<R> pipelined(Stream<? extends T> values, 
+                                                 int windowSize, 
+                                                 Function<? super T, CompletionStage<? extends T>> spawner, 
+                                                 Collector<T, A, R> downstream) {
+        return pipelined(values.iterator(), windowSize, spawner, downstream, null);
+    }
+    
+    public static <T, A, R> Promise<R> pipelined(Stream<? extends T> values, 
+                                                 int windowSize, 
+                                                 Function<? super T, CompletionStage<? extends T>> spawner, 
+                                                 Collector<T, A, R> downstream,
+                                                 Executor downstreamExecutor) {
+        return pipelined(values.iterator(), windowSize, spawner, downstream, Objects.requireNonNull(downstreamExecutor));
+    }
+    
+    private static <T, A, R> Promise<R> pipelined(Iterator<? extends T> values, 
+                                                  int windowSize, 
+                                                  Function<? super T, CompletionStage<? extends T>> spawner, 
+                                                  Collector<T, A, R> downstream,
+                                                  Executor downstreamExecutor) {
+        return new PipelinedPromise<>(values, windowSize, spawner, downstream, downstreamExecutor, false)
+            .start()
+            .as(onCloseSource(values))
+            .unwrap();
+    }
+    
     private static <T, A, R> Promise<R> partitioned1(Iterator<? extends T> values, 
                                                     int batchSize, 
                                                     Function<? super T, CompletionStage<? extends T>> spawner, 
                                                     Collector<T, A, R> downstream) {
-        return
-            parallelStep1(values, 0, batchSize, null, spawner, downstream)
-            .dependent()
-            .thenApply(downstream.finisher(), true)
-            .as(onCloseSource(values))
-            .unwrap();
+        // Batches that are completed synchronously are processed 
+        // iteratively by the drain loop, no need to jump off the current thread
+        return startPartitioned(values, spawner, 
+                                new PipelinedPromise<>(values, batchSize, spawner, downstream, null, true));
     }
     
-
     private static <T, A, R> Promise<R> partitioned2(Iterator<? extends T> values, 
                                                     int batchSize, 
                                                     Function<? super T, CompletionStage<? extends T>> spawner, 
                                                     Collector<T, A, R> downstream,
                                                     Executor downstreamExecutor) {
-        return 
-            parallelStep2(values, 0, batchSize, null, spawner, downstream, downstreamExecutor)
-            .dependent()
-            .thenApplyAsync(downstream.finisher(), downstreamExecutor, true)
-            .as(onCloseSource(values))
-            .unwrap();
+        return startPartitioned(values, spawner, 
+                                new PipelinedPromise<>(values, batchSize, spawner, downstream, downstreamExecutor, true));
+    }
+    
+    private static <T, A, R> Promise<R> startPartitioned(Iterator<? extends T> values, 
+                                                        Function<? super T, CompletionStage<? extends T>> spawner,
+                                                        PipelinedPromise<T, A, R> pipeline) {
+        if (!values.hasNext()) {
+            return pipeline.start()
+                           .as(onCloseSource(values))
+                           .unwrap();
+        }
+        // The first promise is spawned on the current thread and the result
+        // is derived from it: this propagates all decorators to the resulting promise.
+        // PipelinedPromise doesn't inherit decorators
+        CompletionStage<? extends T> first = spawner.apply(values.next());
+        return Promises.from(first)
+                       .dependent()
+                       .thenCombine(pipeline.start(first), SharedFunctions.selectSecond(), PromiseOrigin.ALL)
+                       .as(onCloseSource(values))
+                       .unwrap();
     }
     
     private static <T> Function<Promise<T>, Promise<T>> onCloseSource(Object source) {
@@ -250,114 +442,6 @@ public final class Promises {
         }
     }
     
-    private static <T, A, R> Promise<A> parallelStep1(Iterator<? extends T> values, 
-                                                     int step, 
-                                                     int batchSize,
-                                                     A current,
-                                                     Function<? super T, CompletionStage<? extends T>> spawner,                                                        
-                                                     Collector<T, A, R> downstream) {
-        
-        List<T> valuesBatch = drainBatch(values, batchSize);
-        if (valuesBatch.isEmpty()) {
-            // Over
-            return Promises.success(step == 0 ? downstream.supplier().get() : current)
-                           .dependent();
-        } else {
-            List<CompletionStage<? extends T>> promisesBatch = 
-                valuesBatch.stream()
-                           .map(spawner)
-                           .collect(Collectors.toList());
-           
-            // This tricky thing (from first promise, then combine with all, then compose) 
-            // will propagate all decorators to the resulting promise.
-            // Promise.all doesn't inherit decorators
-            DependentPromise<? extends T> first = Promises.from(promisesBatch.get(0))
-                                                          .dependent(); 
-            AtomicBoolean isRecursive = new AtomicBoolean(true);
-            Thread invokerThread = Thread.currentThread();
-            try {
-                return first.thenCombine(Promises.all(promisesBatch), SharedFunctions.selectSecond(), PromiseOrigin.ALL)
-                            .thenCompose(vals -> {
-                                
-                    boolean callLater = isRecursive.get() && Thread.currentThread() == invokerThread;
-                    if (callLater) {
-                        return 
-                        first
-                        .thenCombine(Timeouts.delay(MINIMAL_DELAY), selectFirst(), PromiseOrigin.PARAM_ONLY)
-                        // yep, default async -- the least evil, while we have to jump off from the timeout thread
-                        .thenComposeAsync(__ -> 
-                            parallelStep1(values, step + 1, batchSize, 
-                                         accumulate(vals, step, current, downstream), 
-                                         spawner, downstream), 
-                            true);
-                    } else {
-                        return parallelStep1(values, step + 1, batchSize, 
-                                            accumulate(vals, step, current, downstream), 
-                                            spawner, downstream);
-                    }
-                }, true);
-            } finally {
-                isRecursive.set(false);
-            }
-        }
-    }
-
-    private static <T, A, R> Promise<A> parallelStep2(Iterator<? extends T> values, 
-                                                     int step, 
-                                                     int batchSize,
-                                                     A current,
-                                                     Function<? super T, CompletionStage<? extends T>> spawner,                                                        
-                                                     Collector<T, A, R> downstream,
-                                                     Executor downstreamExecutor) {
-        
-        List<T> valuesBatch = drainBatch(values, batchSize);
-        if (valuesBatch.isEmpty()) {
-            // Over
-            Promise<A> result;
-            if (step == 0) {
-                result = CompletableTask.supplyAsync(downstream.supplier(), downstreamExecutor);
-            } else {
-                result = Promises.success(current);
-            }
-            return result.dependent();
-        } else {
-            List<CompletionStage<? extends T>> promisesBatch = 
-                valuesBatch.stream()
-                           .map(spawner)
-                           .collect(Collectors.toList());
-           
-            // This tricky thing (from first promise, then combine with all, then compose) 
-            // will propagate all decorators to the resulting promise.
-            // Promise.all doesn't inherit decorators
-            return 
-                Promises.from(promisesBatch.get(0))
-                       .dependent()
-                       .thenCombine(Promises.all(promisesBatch), SharedFunctions.selectSecond(), PromiseOrigin.ALL)
-                       .thenComposeAsync(vals -> parallelStep2(
-                               values, step + 1, batchSize, 
-                               accumulate(vals, step, current, downstream), 
-                               spawner, downstream, downstreamExecutor
-                               ), downstreamExecutor, true);
-        }
-    }
-    
-    private static <T> List<T> drainBatch(Iterator<? extends T> values, int batchSize) {
-        List<T> valuesBatch = new ArrayList<>(batchSize);
-        for (int count = 0; values.hasNext() && count < batchSize; count++) {
-            valuesBatch.add(values.next());
-        }        
-        return valuesBatch;
-    }
-    
-    private static <T, A, R> A accumulate(List<T> vals, int step, A current, Collector<T, A, R> downstream) {
-        A insertion = downstream.supplier().get();
-        vals.stream()
-            .forEach(v -> downstream.accumulator().accept(insertion, v));
-        
-        return step == 0 ? insertion : downstream.combiner().apply(current, insertion);
-    }
-
-    
     /**
      * <p>Returns a promise that is resolved successfully when all {@link CompletionStage}-s passed as parameters
      * are completed normally; if any promise completed exceptionally, then resulting promise is resolved faulty
@@ -407,6 +491,72 @@ public final class Promises {
     public static <T> Promise<List<T>> all(boolean cancelRemaining, List<? extends CompletionStage<? extends T>> promises) {
         return atLeast(null != promises ? promises.size() : 0, 0, cancelRemaining, promises);
     }
+    
+    /**
+     * <p>Returns a promise that is resolved successfully when all {@link CompletionStage}-s passed as parameters
+     * are completed normally; if any promise completed exceptionally, then resulting promise is resolved faulty
+     * as well.
+     * <p>Unlike {@link Promises#all(List)} results are not materialized as a list but folded with the 
+     * <code>collector</code> in the order of their completion, so the collector should not depend on the 
+     * encounter order. Collectors with {@link Collector.Characteristics#CONCURRENT} characteristic share single
+     * result container, for other collectors results are accumulated into several containers that are 
+     * combined when all results are available.
+     * <p>When resulting promise is resolved faulty, all remaining incomplete {@link CompletionStage}-s are 
+     * cancelled.  
+     * @param <T>
+     *   a common supertype of the resulting values
+     * @param <A>
+     *   a type of the collector's mutable accumulation container
+     * @param <R>
+     *   a type of the aggregated result
+     * @param promises
+     *   a list of {@link CompletionStage}-s to combine
+     * @param collector
+     *   a collector to fold results
+     * @return
+     *   a combined promise
+     */
+    public static <T, A, R> Promise<R> collect(List<? extends CompletionStage<? extends T>> promises, 
+                                               Collector<? super T, A, R> collector) {
+        return collect(true, promises, collector);
+    }
+
+    /**
+     * <p>Returns a promise that is resolved successfully when all {@link CompletionStage}-s passed as parameters
+     * are completed normally; if any promise completed exceptionally, then resulting promise is resolved faulty
+     * as well.
+     * <p>Unlike {@link Promises#all(boolean, List)} results are not materialized as a list but folded with the 
+     * <code>collector</code> in the order of their completion, so the collector should not depend on the 
+     * encounter order. Collectors with {@link Collector.Characteristics#CONCURRENT} characteristic share single
+     * result container, for other collectors results are accumulated into several containers that are 
+     * combined when all results are available.
+     * <p>When resulting promise is resolved faulty <em>and</em> <code>cancelRemaining</code> parameter is
+     * <code>true</code>, all remaining incomplete {@link CompletionStage}-s are cancelled.  
+     * @param <T>
+     *   a common supertype of the resulting values
+     * @param <A>
+     *   a type of the collector's mutable accumulation container
+     * @param <R>
+     *   a type of the aggregated result
+     * @param cancelRemaining
+     *   when true and resulting promise is resolved faulty all incomplete {@link CompletionStage}-s are cancelled
+     * @param promises
+     *   a list of {@link CompletionStage}-s to combine
+     * @param collector
+     *   a collector to fold results
+     * @return
+     *   a combined promise
+     */
+    public static <T, A, R> Promise<R> collect(boolean cancelRemaining, 
+                                               List<? extends CompletionStage<? extends T>> promises, 
+                                               Collector<? super T, A, R> collector) {
+        if (null == promises || promises.isEmpty()) {
+            return success(collector.finisher().apply(collector.supplier().get()));
+        } else {
+            return new CollectingPromise<>(collector, cancelRemaining, promises);
+        }
+    }
+
     /**
      * <p>Returns a promise that is resolved successfully when any {@link CompletionStage} passed as parameters
      * is completed normally (race is possible); if all promises completed exceptionally, then resulting promise
@@ -747,12 +897,7 @@ public final class Promises {
     public static <T extends C, C> Promise<T> retry(RetryCallable<T, C> codeBlock, Executor executor, 
                                                     RetryPolicy<? super C> retryPolicy) {
         
-        return startRetry(retryPolicy, new RetryInitiator<T, C>() {
-            @Override
-            public void run(RetryContext<C> ctx, CompletableFuture<T> result, Consumer<Promise<?>> cancellation) {
-                tryValueOnce(codeBlock, executor, ctx, result, cancellation);
-            }
-        }).defaultAsyncOn(executor);        
+        return new RetryingPromise.Values<>(codeBlock, executor).start(retryPolicy).defaultAsyncOn(executor);        
     }
     
     public static <T> Promise<T> retryOptional(Callable<Optional<T>> codeBlock, Executor executor, 
@@ -777,167 +922,49 @@ public final class Promises {
     public static <T extends C, C> Promise<T> retryFuture(RetryCallable<? extends CompletionStage<T>, C> futureFactory, 
                                                           RetryPolicy<? super C> retryPolicy) {
         
-        return startRetry(retryPolicy, new RetryInitiator<T, C>() {
-            @Override
-            public void run(RetryContext<C> ctx, CompletableFuture<T> result, Consumer<Promise<?>> cancellation) {
-                tryFutureOnce(futureFactory, ctx, result, cancellation, null);
-            }
-        });
-    }
-    
-    private static <T extends C, C> Promise<T> startRetry(RetryPolicy<? super C> retryPolicy, RetryInitiator<T, C> initiator) {
-        
-        final CompletableFuture<T> result = new CompletableFuture<>();
-        final AtomicReference<Promise<?>> callPromiseRef = new AtomicReference<>();
-        // Cleanup latest timeout on completion;
-        result.whenComplete(
-            (r, e) -> 
-                Optional
-                .of(callPromiseRef)
-                .map(AtomicReference::get)
-                .ifPresent( p -> p.cancel(true) )
-        );
-        Consumer<Promise<?>> cancellation = p -> {
-            // If result promise is cancelled after callPromise was set need to stop;               
-            callPromiseRef.set( p );    
-            if (result.isDone()) {
-                p.cancel(true);
-            }
-        };
-        
-        RetryContext<C> ctx = RetryContext.initial(retryPolicy);     
-        initiator.run(ctx, result, cancellation);
-        return new CompletableFutureWrapper<>(result);
+        return new RetryingPromise.Futures<>(futureFactory, null, null, 1).start(retryPolicy);
     }
     
-    private static <T extends C, C> void tryValueOnce(RetryCallable<T, C> codeBlock, 
-                                                      Executor executor, 
-                                                      RetryContext<C> ctx, 
-                                                      CompletableFuture<T> result, 
-                                                      Consumer<Promise<?>> cancellation) {
-        
-        // Promise may be cancelled outside of polling
-        if (result.isDone()) {
-            return;
-        }
+    /**
+     * <p>Returns a promise that is resolved with the first valid result of the attempts created by 
+     * <code>invoker</code>. When the running attempt takes longer than the delay provided by <code>hedgeDelay</code>
+     * policy, the speculative duplicate attempt is started, so up to <code>maxParallel</code> attempts 
+     * may run concurrently. Failed attempts are retried according to <code>retryPolicy</code>, every 
+     * attempt (including speculative one) counts as a retry. Once resolved, all remaining attempts are cancelled.
+     * <p>The number of attempts that are still running is available via {@link RetryContext#getOutstandingAttempts()}.
+     * @param <T>
+     *   a type of the result
+     * @param invoker
+     *   the factory of the attempts, should not block
+     * @param executor
+     *   the executor to start attempts and to handle timeouts on instead of the timer thread
+     * @param retryPolicy
+     *   the policy to retry failed attempts and to limit the total number of attempts
+     * @param hedgeDelay
+     *   the policy that specifies the delay before the next speculative attempt
+     * @param maxParallel
+     *   the maximum number of concurrently running attempts
+     * @return
+     *   the promise of the first valid result
+     */
+    public static <T> Promise<T> hedge(Callable<? extends CompletionStage<T>> invoker, 
+                                       Executor executor,
+                                       RetryPolicy<? super T> retryPolicy,
+                                       DelayPolicy<? super T> hedgeDelay,
+                                       int maxParallel) {
         
-        RetryPolicy.Verdict verdict = ctx.shouldContinue();
-        if (verdict.shouldExecute()) {
-            Supplier<Promise<?>> callSupplier = () -> {
-                long startTime = System.nanoTime();                
-                Runnable call = () -> {
-                    try {
-                        T value = codeBlock.call(ctx);
-                        if (ctx.isValidResult(value)) {
-                            result.complete(value);
-                        } else {
-                            long finishTime = System.nanoTime();
-                            RetryContext<C> nextCtx = ctx.nextRetry(duration(startTime, finishTime), value);
-                            tryValueOnce(codeBlock, executor, nextCtx, result, cancellation);
-                        }
-                    } catch (Exception ex) {
-                        long finishTime = System.nanoTime();
-                        RetryContext<C> nextCtx = ctx.nextRetry(duration(startTime, finishTime), ex);
-                        tryValueOnce(codeBlock, executor, nextCtx, result, cancellation);
-                    }
-                };
-                
-                // Call should be done via CompletableTask to let it be interruptible               
-            	Promise<?> p = CompletableTask.runAsync(call, executor);
-            	return applyExecutionTimeout(p, verdict);
-            };
-            Duration backoffDelay = verdict.backoffDelay();
-            if (DelayPolicy.isValid(backoffDelay)) {
-                // Invocation after timeout, change cancellation target
-                Promise<?> later = Timeouts
-                    .delay(backoffDelay)
-                    .dependent()
-                    .thenRun(() -> cancellation.accept( callSupplier.get() ), true);
-                cancellation.accept( later );
-            } else {
-                // Immediately send to executor
-                cancellation.accept( callSupplier.get() ); 
-            } 
-        } else {
-            result.completeExceptionally(ctx.asFailure());
-        }
+        return hedge(toRetryCallable(invoker), executor, retryPolicy, hedgeDelay, maxParallel);
     }
     
-    private static <T extends C, C> void tryFutureOnce(RetryCallable<? extends CompletionStage<T>, C> futureFactory, 
-                                                       RetryContext<C> ctx, 
-                                                       CompletableFuture<T> result,
-                                                       Consumer<Promise<?>> cancellation,
-                                                       Promise<?> prev) {
-        // Promise may be cancelled outside of polling
-        if (result.isDone()) {
-            return;
-        }
+    public static <T extends C, C> Promise<T> hedge(RetryCallable<? extends CompletionStage<T>, C> futureFactory, 
+                                                    Executor executor,
+                                                    RetryPolicy<? super C> retryPolicy,
+                                                    DelayPolicy<? super C> hedgeDelay,
+                                                    int maxParallel) {
         
-        RetryPolicy.Verdict verdict = ctx.shouldContinue();
-        if (verdict.shouldExecute()) {
-            Supplier<Promise<?>> callSupplier = () -> {
-                long startTime = System.nanoTime();
-                
-                Promise<? extends T> target;
-                try {
-                    target = Promises.from(futureFactory.call(ctx));
-                } catch (Exception ex) {
-                    target = Promises.failure(ex);
-                }
-
-                AtomicBoolean isRecursive = new AtomicBoolean(true);
-                Thread invokerThread = Thread.currentThread();
-
-                Promise<? extends T> p = target;
-                p.whenComplete((value, ex) -> {
-                    if (null == ex && ctx.isValidResult(value)) {
-                        result.complete(value);
-                    } else {
-                        long finishTime = System.nanoTime();
-                        RetryContext<C> nextCtx = ctx.nextRetry(
-                            duration(startTime, finishTime), SharedFunctions.unwrapCompletionException(ex)
-                        );
-                        boolean callLater = isRecursive.get() && Thread.currentThread() == invokerThread;
-                        if (callLater) {
-                            // Call after minimal possible delay
-                            callLater(
-                                p, MINIMAL_DELAY, cancellation, 
-                                () -> tryFutureOnce(futureFactory, nextCtx, result, cancellation, p)
-                            );
-                        } else {
-                            tryFutureOnce(futureFactory, nextCtx, result, cancellation, p);
-                        }
-                    }
-                });
-                isRecursive.set(false);
-                return applyExecutionTimeout(p, verdict);
-            };
-            Duration backoffDelay = verdict.backoffDelay();
-            if (null != prev && DelayPolicy.isValid(backoffDelay)) {
-                callLater(prev, backoffDelay, cancellation, () -> cancellation.accept( callSupplier.get() ));
-            } else {
-                // Immediately send to executor
-                cancellation.accept( callSupplier.get() ); 
-            }  
-        } else {
-            result.completeExceptionally(ctx.asFailure());
-        }        
-    }
-    
-    private static <T> void callLater(Promise<T> completedPromise, Duration delay, Consumer<Promise<?>> cancellation, Runnable code) {
-        Promise<?> later = completedPromise
-            .dependent()
-            .thenCombine(Timeouts.delay(delay), selectFirst(), PromiseOrigin.PARAM_ONLY)
-            .whenCompleteAsync((r, e) -> code.run(), true);
-        cancellation.accept(later);
-    }
-
-    private static <T> Promise<T> applyExecutionTimeout(Promise<T> singleInvocationPromise, RetryPolicy.Verdict verdict) {
-        Duration timeout = verdict.timeout();
-        if (DelayPolicy.isValid(timeout)) {
-            singleInvocationPromise.dependent().orTimeout( timeout, true, true ).unwrap();
-        }
-        return singleInvocationPromise;        
+        return new RetryingPromise.Futures<>(futureFactory, executor, hedgeDelay, maxParallel)
+            .start(retryPolicy)
+            .defaultAsyncOn(executor);
     }
     
     private static <T, U> Promise<T> transform(CompletionStage<U> original, 
@@ -991,14 +1018,4 @@ public final class Promises {
     private static <V, T> RetryCallable<V, T> toRetryCallable(Callable<? extends V> callable) {
         return ctx -> callable.call();
     }
-    
-    private static Duration duration(long startTime, long finishTime) {
-        return Duration.ofNanos(finishTime - startTime);
-    }
-    
-    private static abstract class RetryInitiator<T extends C, C> {
-        abstract void run(RetryContext<C> ctx, CompletableFuture<T> result, Consumer<Promise<?>> cancellation);
-    }
-
-    private static final Duration MINIMAL_DELAY = Duration.ofNanos(1L);
 }
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Retry throttling shared by many retry loops, modeled after gRPC retry throttling.
+ * <p>The budget holds up to <code>maxTokens</code> tokens and starts full. Every failed attempt 
+ * takes one token, every successful attempt returns <code>tokenRatio</code> tokens. Retries are
+ * allowed only while more than half of <code>maxTokens</code> is available, so when the dependency
+ * is failing the aggregate retry rate drops to the fraction of successful calls.
+ * <p>The state is a single integer updated with CAS, so the budget is safe to share across 
+ * any number of concurrent retry loops; use it via {@link RetryPolicy#withBudget(RetryBudget)}.
+ * 
+ * @author vsilaev
+ *
+ */
+public final class RetryBudget {
+    // Tokens are stored as fixed-point numbers with 3 decimal digits
+    private static final int SCALE = 1000;
+    // Keeps scaled capacity (plus one credit) far below Integer.MAX_VALUE
+    private static final int MAX_TOKENS = 1000;
+    private static final double MIN_TOKEN_RATIO = 1.0 / SCALE;
+    
+    private final int maxTokens;
+    private final int threshold;
+    private final int tokenRatio;
+    
+    private volatile int tokens;
+    
+    private RetryBudget(int maxTokens, int tokenRatio) {
+        this.maxTokens  = maxTokens;
+        this.threshold  = maxTokens / 2;
+        this.tokenRatio = tokenRatio;
+        this.tokens     = maxTokens;
+    }
+    
+    /**
+     * Creates new retry budget
+     * @param maxTokens
+     *   the capacity of the budget, must be in range (0, 1000]
+     * @param tokenRatio
+     *   the number of tokens returned on every successful call, must be in range [0.001, 1];
+     *   precision is limited to 3 decimal digits
+     * @return
+     *   the new budget
+     */
+    public static RetryBudget of(int maxTokens, double tokenRatio) {
+        if (maxTokens <= 0 || maxTokens > MAX_TOKENS) {
+            throw new IllegalArgumentException("Max tokens must be in range (0, " + MAX_TOKENS + "]: " + maxTokens);
+        }
+        if (!(tokenRatio >= MIN_TOKEN_RATIO && tokenRatio <= 1)) {
+            // Smaller ratio would be truncated to zero and never refill the budget
+            throw new IllegalArgumentException("Token ratio must be in range [" + MIN_TOKEN_RATIO + ", 1]: " + tokenRatio);
+        }
+        return new RetryBudget(maxTokens * SCALE, (int)Math.round(tokenRatio * SCALE));
+    }
+    
+    /**
+     * Checks whether yet another retry is allowed
+     * @return
+     *   true if retry is allowed
+     */
+    public boolean canRetry() {
+        return tokens > threshold;
+    }
+    
+    /**
+     * Returns the number of currently available tokens
+     * @return
+     *   the number of tokens
+     */
+    public double getAvailableTokens() {
+        return (double)tokens / SCALE;
+    }
+    
+    void onSuccess() {
+        int current;
+        do {
+            current = tokens;
+            if (current == maxTokens) {
+                return;
+            }
+        } while (!TOKENS.compareAndSet(this, current, Math.min(maxTokens, current + tokenRatio)));
+    }
+    
+    void onFailure() {
+        int current;
+        do {
+            current = tokens;
+            if (current == 0) {
+                return;
+            }
+        } while (!TOKENS.compareAndSet(this, current, Math.max(0, current - SCALE)));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[max-tokens=%d, token-ratio=%.3f, tokens=%.3f]", 
+                             getClass().getSimpleName(), maxTokens / SCALE, (double)tokenRatio / SCALE, getAvailableTokens());
+    }
+    
+    private static final AtomicIntegerFieldUpdater<RetryBudget> TOKENS =
+        AtomicIntegerFieldUpdater.newUpdater(RetryBudget.class, "tokens");
+}
@@ -23,13 +23,20 @@ public final class RetryContext<T> {
     private final Duration lastCallDuration;
     private final T lastResult;
     private final Throwable lastError;
+    private final int outstandingAttempts;
     
     private RetryContext(RetryPolicy<? super T> policy, int retryCount, Duration lastCallDuration, T lastResult, Throwable lastError) {
+        this(policy, retryCount, lastCallDuration, lastResult, lastError, 0);
+    }
+    
+    private RetryContext(RetryPolicy<? super T> policy, int retryCount, Duration lastCallDuration, T lastResult, Throwable lastError, 
+                         int outstandingAttempts) {
         this.policy = policy;
         this.retryCount = retryCount;
         this.lastCallDuration = lastCallDuration;
         this.lastResult = lastResult;
         this.lastError  = lastError;
+        this.outstandingAttempts = outstandingAttempts;
     }
 
     public int getRetryCount() {
@@ -48,20 +55,30 @@ public final class RetryContext<T> {
         return lastError;
     }
     
+    /**
+     * Returns the number of attempts that are still running while the next one is considered.
+     * Always zero for sequential retries, may be positive for hedged requests.
+     * @return
+     *   the number of outstanding attempts
+     */
+    public int getOutstandingAttempts() {
+        return outstandingAttempts;
+    }
+    
     public RetryContext<T> overrideRetryCount(int newRetryCount) {
-        return new RetryContext<>(policy, newRetryCount, lastCallDuration, lastResult, lastError);
+        return new RetryContext<>(policy, newRetryCount, lastCallDuration, lastResult, lastError, outstandingAttempts);
     }
     
     public RetryContext<T> overrideLastCallDuration(Duration newDuration) {
-        return new RetryContext<>(policy, retryCount, newDuration, lastResult, lastError);
+        return new RetryContext<>(policy, retryCount, newDuration, lastResult, lastError, outstandingAttempts);
     }
 
     public RetryContext<T> overrideLastResult(T newResult) {
-        return new RetryContext<>(policy, retryCount, lastCallDuration, newResult, lastError);
+        return new RetryContext<>(policy, retryCount, lastCallDuration, newResult, lastError, outstandingAttempts);
     }
     
     public RetryContext<T> overrideLastError(Throwable newError) {
-        return new RetryContext<>(policy, retryCount, lastCallDuration, lastResult, newError);
+        return new RetryContext<>(policy, retryCount, lastCallDuration, lastResult, newError, outstandingAttempts);
     }
     
     static <T> RetryContext<T> initial(RetryPolicy<? super T> policy) {
@@ -72,6 +89,14 @@ public final class RetryContext<T> {
         return policy.shouldContinue(this);
     }
     
+    RetryPolicy.Verdict shouldHedge() {
+        return policy.shouldHedge(this);
+    }
+    
+    RetryContext<T> withOutstandingAttempts(int newOutstandingAttempts) {
+        return new RetryContext<>(policy, retryCount, lastCallDuration, lastResult, lastError, newOutstandingAttempts);
+    }
+    
     RetryContext<T> nextRetry(Duration callDuration, T lastResult) {
         return new RetryContext<>(policy, retryCount + 1, callDuration, lastResult, null);
     }
@@ -80,8 +105,13 @@ public final class RetryContext<T> {
         return new RetryContext<>(policy, retryCount + 1, callDuration, null, lastError);
     }
     
-    boolean isValidResult(T newResult) {
-        return policy.acceptResult(newResult);
+    CircuitBreaker.Permit tryAcquirePermission() {
+        CircuitBreaker circuitBreaker = policy.circuitBreaker();
+        return null == circuitBreaker ? CircuitBreaker.Permit.NONE : circuitBreaker.tryAcquirePermission();
+    }
+    
+    boolean isValidResult(T newResult, Duration callDuration) {
+        return policy.acceptResult(newResult, callDuration);
     }
     
     RetryException asFailure() {
@@ -30,6 +30,9 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.function.Predicate;
 
+import net.tascalate.concurrent.delays.AdaptiveDelayPolicy;
+import net.tascalate.concurrent.delays.LatencyHistogram;
+
 public class RetryPolicy<T> {
     
     public static interface Verdict {
@@ -85,6 +88,9 @@ public class RetryPolicy<T> {
     private final Predicate<RetryContext<? extends T>> abortPredicate;
     private final DelayPolicy<? super T> backoff;
     private final DelayPolicy<? super T> timeout;
+    private final RetryBudget retryBudget;
+    private final LatencyHistogram latencies;
+    private final CircuitBreaker circuitBreaker;
 
     @SafeVarargs
     public final RetryPolicy<T> retryOn(Class<? extends Throwable>... retryOnThrowables) {
@@ -93,7 +99,7 @@ public class RetryPolicy<T> {
     
     public RetryPolicy<T> retryOn(Collection<Class<? extends Throwable>> retryOnThrowables) {
         return new RetryPolicy<T>(maxRetries, resultValidator,
-                                  setPlusElems(retryOn, retryOnThrowables), abortOn, retryPredicate, abortPredicate, backoff, timeout);
+                                  setPlusElems(retryOn, retryOnThrowables), abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
 
     @SafeVarargs
@@ -103,78 +109,179 @@ public class RetryPolicy<T> {
 
     public RetryPolicy<T> abortOn(Collection<Class<? extends Throwable>> abortOnThrowables) {
         return new RetryPolicy<>(maxRetries, resultValidator, 
-                                 retryOn, setPlusElems(abortOn, abortOnThrowables), retryPredicate, abortPredicate, backoff, timeout);
+                                 retryOn, setPlusElems(abortOn, abortOnThrowables), retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
     
     
     public RetryPolicy<T> abortIf(Predicate<RetryContext<? extends T>> abortPredicate) {
         return new RetryPolicy<>(maxRetries, resultValidator,
-                                 retryOn, abortOn, retryPredicate, this.abortPredicate.or(abortPredicate), backoff, timeout);
+                                 retryOn, abortOn, retryPredicate, this.abortPredicate.or(abortPredicate), backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
 
     public RetryPolicy<T> retryIf(Predicate<RetryContext<? extends T>> retryPredicate) {
         return new RetryPolicy<>(maxRetries, resultValidator,
-                                 retryOn, abortOn, this.retryPredicate.or(retryPredicate), abortPredicate, backoff, timeout);
+                                 retryOn, abortOn, this.retryPredicate.or(retryPredicate), abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
 
     public RetryPolicy<T> withoutAbortRules() {
         return new RetryPolicy<>(maxRetries, resultValidator,
-                                 retryOn, Collections.emptySet(), retryPredicate, predicateFalse(), backoff, timeout);
+                                 retryOn, Collections.emptySet(), retryPredicate, predicateFalse(), backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
     
     public RetryPolicy<T> withoutRetryRules() {
         return new RetryPolicy<>(maxRetries, resultValidator,
-                                 Collections.emptySet(), abortOn, predicateFalse(), abortPredicate, backoff, timeout);
+                                 Collections.emptySet(), abortOn, predicateFalse(), abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
     
     public RetryPolicy<T> retryOnce() {
         return new RetryPolicy<T>(0, resultValidator,
-                                  retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout);
+                                  retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
     
     public RetryPolicy<T> retryInfinitely() {
         return new RetryPolicy<>(-1, resultValidator,
-                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout);
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
 
     public RetryPolicy<T> withMaxRetries(int maxRetries) {
         return new RetryPolicy<>(maxRetries, resultValidator,
-                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout);
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
     
     public RetryPolicy<T> acceptNullResult() {
         return new RetryPolicy<>(maxRetries, ACCEPT_NULL_RESULT,
-                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout);
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
     
     public RetryPolicy<T> rejectNullResult() {
         return new RetryPolicy<>(maxRetries, REJECT_NULL_RESULT,
-                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout);
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
     
     public RetryPolicy<T> withResultValidator(Predicate<? super T> resultValidator) {
         return new RetryPolicy<>(maxRetries, resultValidator,
-                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout);
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
     
     public RetryPolicy<T> withBackoff(DelayPolicy<? super T> backoff) {
         return new RetryPolicy<>(maxRetries, resultValidator,
-                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout);
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
     
     public RetryPolicy<T> withoutBackoff() {
         return new RetryPolicy<>(maxRetries, resultValidator,
-                                 retryOn, abortOn, retryPredicate, abortPredicate, DelayPolicy.INVALID, timeout);
+                                 retryOn, abortOn, retryPredicate, abortPredicate, DelayPolicy.INVALID, timeout, retryBudget, latencies, circuitBreaker);
     }
     
     public RetryPolicy<T> withTimeout(DelayPolicy<? super T> timeout) {
         return new RetryPolicy<>(maxRetries, resultValidator,
-                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout);
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
     }
 
+    public RetryPolicy<T> withBudget(RetryBudget retryBudget) {
+        return new RetryPolicy<>(maxRetries, resultValidator,
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
+    }
+    
+    public RetryPolicy<T> withoutBudget() {
+        return new RetryPolicy<>(maxRetries, resultValidator,
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, null, latencies, circuitBreaker);
+    }
+    
+    /**
+     * Records durations of the attempts with accepted results into the histogram given. Failed and timed out 
+     * attempts are not recorded, otherwise they would inflate the latency the timeout is derived from. 
+     * The histogram may be shared by many policies and is used by {@link AdaptiveDelayPolicy} to derive backoff
+     * and timeout from the observed latency. Adaptive backoff and timeout set before are switched to the new histogram.
+     * @param latencies
+     *   the histogram to record call durations
+     * @return
+     *   the new retry policy
+     */
+    public RetryPolicy<T> withLatencyHistogram(LatencyHistogram latencies) {
+        return new RetryPolicy<>(maxRetries, resultValidator,
+                                 retryOn, abortOn, retryPredicate, abortPredicate, 
+                                 rebindAdaptive(backoff, latencies), rebindAdaptive(timeout, latencies), 
+                                 retryBudget, latencies, circuitBreaker);
+    }
+    
+    /**
+     * Stops recording call durations
+     * @return
+     *   the new retry policy
+     * @throws IllegalStateException
+     *   if adaptive backoff or timeout depends on the histogram
+     */
+    public RetryPolicy<T> withoutLatencyHistogram() {
+        return new RetryPolicy<>(maxRetries, resultValidator,
+                                 retryOn, abortOn, retryPredicate, abortPredicate, 
+                                 rebindAdaptive(backoff, null), rebindAdaptive(timeout, null), 
+                                 retryBudget, null, circuitBreaker);
+    }
+    
+    /**
+     * Sets the per-attempt timeout to the observed latency at the <code>percentile</code> multiplied by the 
+     * <code>multiplier</code>, i.e. <code>withAdaptiveTimeout(0.99, 2)</code> gives twice the p99 latency. 
+     * The current timeout is used until enough attempts are recorded. 
+     * Latencies are recorded into the histogram set via {@link #withLatencyHistogram(LatencyHistogram)} or
+     * into a new one if none was set. 
+     * @param percentile
+     *   the percentile in range (0, 1]
+     * @param multiplier
+     *   the positive multiplier applied to the latency
+     * @return
+     *   the new retry policy
+     */
+    public RetryPolicy<T> withAdaptiveTimeout(double percentile, double multiplier) {
+        LatencyHistogram histogram = null != latencies ? latencies : new LatencyHistogram();
+        return new RetryPolicy<>(maxRetries, resultValidator,
+                                 retryOn, abortOn, retryPredicate, abortPredicate, 
+                                 backoff, new AdaptiveDelayPolicy<>(timeout, histogram, percentile, multiplier), 
+                                 retryBudget, histogram, circuitBreaker);
+    }
+    
+    /**
+     * Sets the backoff to the observed latency at the <code>percentile</code> multiplied by the 
+     * <code>multiplier</code>. The current backoff is used until enough attempts are recorded. 
+     * Latencies are recorded into the histogram set via {@link #withLatencyHistogram(LatencyHistogram)} or
+     * into a new one if none was set. 
+     * @param percentile
+     *   the percentile in range (0, 1]
+     * @param multiplier
+     *   the positive multiplier applied to the latency
+     * @return
+     *   the new retry policy
+     */
+    public RetryPolicy<T> withAdaptiveBackoff(double percentile, double multiplier) {
+        LatencyHistogram histogram = null != latencies ? latencies : new LatencyHistogram();
+        return new RetryPolicy<>(maxRetries, resultValidator,
+                                 retryOn, abortOn, retryPredicate, abortPredicate, 
+                                 new AdaptiveDelayPolicy<>(backoff, histogram, percentile, multiplier), timeout, 
+                                 retryBudget, histogram, circuitBreaker);
+    }
+    
+    /**
+     * Guards every attempt with the circuit breaker given: when the breaker is open the retry loop 
+     * fails fast with {@link CircuitBreakerOpenException} without executing the attempt, outcomes 
+     * of the attempts are reported to the breaker.
+     * @param circuitBreaker
+     *   the circuit breaker, may be shared by many policies
+     * @return
+     *   the new retry policy
+     */
+    public RetryPolicy<T> withCircuitBreaker(CircuitBreaker circuitBreaker) {
+        return new RetryPolicy<>(maxRetries, resultValidator,
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, circuitBreaker);
+    }
+    
+    public RetryPolicy<T> withoutCircuitBreaker() {
+        return new RetryPolicy<>(maxRetries, resultValidator,
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, retryBudget, latencies, null);
+    }
+    
     public RetryPolicy<T> withoutTimeout() {
         return new RetryPolicy<>(maxRetries, resultValidator,
-                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, DelayPolicy.INVALID);
+                                 retryOn, abortOn, retryPredicate, abortPredicate, backoff, DelayPolicy.INVALID, retryBudget, latencies, circuitBreaker);
     }
 
     public RetryPolicy(int maxRetries, 
@@ -185,6 +292,20 @@ public class RetryPolicy<T> {
                        Predicate<RetryContext<? extends T>> abortPredicate, 
                        DelayPolicy<? super T> backoff,
                        DelayPolicy<? super T> timeout) {
+        this(maxRetries, resultValidator, retryOn, abortOn, retryPredicate, abortPredicate, backoff, timeout, null, null, null);
+    }
+    
+    private RetryPolicy(int maxRetries, 
+                        Predicate<? super T> resultValidator, 
+                        Set<Class<? extends Throwable>> retryOn, 
+                        Set<Class<? extends Throwable>> abortOn, 
+                        Predicate<RetryContext<? extends T>> retryPredicate, 
+                        Predicate<RetryContext<? extends T>> abortPredicate, 
+                        DelayPolicy<? super T> backoff,
+                        DelayPolicy<? super T> timeout,
+                        RetryBudget retryBudget,
+                        LatencyHistogram latencies,
+                        CircuitBreaker circuitBreaker) {
         
         this.maxRetries = maxRetries;
         this.resultValidator = resultValidator;
@@ -194,6 +315,9 @@ public class RetryPolicy<T> {
         this.abortPredicate = abortPredicate;
         this.backoff = backoff;
         this.timeout = timeout;
+        this.retryBudget = retryBudget;
+        this.latencies = latencies;
+        this.circuitBreaker = circuitBreaker;
     }
 
     public RetryPolicy() {
@@ -256,9 +380,26 @@ public class RetryPolicy<T> {
     protected boolean acceptResult(T result) {
         return resultValidator.test(result);
     }
+    
+    boolean acceptResult(T result, Duration callDuration) {
+        boolean accepted = acceptResult(result);
+        if (accepted && null != retryBudget) {
+            // Credit here rather than in the overridable check above,
+            // so subclasses can't skip it or credit twice
+            retryBudget.onSuccess();
+        }
+        if (accepted && null != latencies) {
+            latencies.record(callDuration);
+        }
+        return accepted;
+    }
 
     protected Verdict shouldContinue(RetryContext<? extends T> context) {
         final boolean result;
+        if (null != retryBudget && context.getRetryCount() > 0) {
+            // Any call but the very first one is a retry after failed attempt
+            retryBudget.onFailure();
+        }
         if (tooManyRetries(context)) {
             result = false;
         } else if (abortPredicate.test(context)) {
@@ -268,19 +409,59 @@ public class RetryPolicy<T> {
         } else {
             result = exceptionClassRetryable(context);
         }
+        if (result && null != retryBudget && context.getRetryCount() > 0 && !retryBudget.canRetry()) {
+            return DONT_RETRY;
+        }
         return result ? new PositiveVerdict(backoff.delay(context), timeout.delay(context)) : DONT_RETRY;
     }
 
+    /**
+     * Admits the speculative attempt (hedge) while other attempts are running. Unlike 
+     * {@link #shouldContinue(RetryContext)} it doesn't account a failure: the retry budget 
+     * is not charged.
+     */
+    Verdict shouldHedge(RetryContext<? extends T> context) {
+        if (tooManyRetries(context) || abortPredicate.test(context)) {
+            return DONT_RETRY;
+        }
+        if (null != retryBudget && context.getRetryCount() > 0 && !retryBudget.canRetry()) {
+            return DONT_RETRY;
+        }
+        return new PositiveVerdict(backoff.delay(context), timeout.delay(context));
+    }
+
+    private DelayPolicy<? super T> rebindAdaptive(DelayPolicy<? super T> policy, LatencyHistogram newLatencies) {
+        if (policy instanceof AdaptiveDelayPolicy && null != latencies) {
+            AdaptiveDelayPolicy<? super T> adaptive = (AdaptiveDelayPolicy<? super T>)policy;
+            // Only policies created by withAdaptive* methods, explicit ones are left as is
+            if (adaptive.getHistogram() == latencies) {
+                if (null == newLatencies) {
+                    throw new IllegalStateException("Adaptive backoff or timeout requires latency histogram");
+                }
+                return adaptive.withHistogram(newLatencies);
+            }
+        }
+        return policy;
+    }
+
     private boolean tooManyRetries(RetryContext<?> context) {
         return maxRetries >= 0 && context.getRetryCount() > maxRetries;
     }
 
+    CircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+    
+    boolean isRetryableError(Throwable error) {
+        final Class<? extends Throwable> e = error.getClass();
+        return !matches(e, abortOn) && matches(e, retryOn); 
+    }
+
     private boolean exceptionClassRetryable(RetryContext<?> context) {
         if (context.getLastError() == null) {
             return true;
         }
-        final Class<? extends Throwable> e = context.getLastError().getClass();
-        return !matches(e, abortOn) && matches(e, retryOn); 
+        return isRetryableError(context.getLastError());
     }
 
     private static boolean matches(Class<? extends Throwable> throwable, Set<Class<? extends Throwable>> set) {
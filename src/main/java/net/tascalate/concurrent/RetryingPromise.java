@@ -0,0 +1,549 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import static net.tascalate.concurrent.SharedFunctions.cancelPromise;
+import static net.tascalate.concurrent.SharedFunctions.unwrapCompletionException;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+
+/**
+ * Retry loop implemented as a single state machine: the same object evaluates
+ * {@link RetryPolicy} verdicts, waits for the backoff on the {@link TimeoutScheduler},
+ * launches attempts and guards them with the execution timeout.
+ * <p>When the hedge delay is specified, the loop also fires speculative duplicate attempts
+ * (hedges) while the running ones take longer than the delay, up to <code>maxParallel</code>
+ * attempts at once; the first valid result wins and the rest of attempts are cancelled.
+ * <p>Failed attempts and elapsed timers are published as events and processed by the steps
+ * serialized with the work-in-progress counter, so synchronously completed attempts are
+ * handled in the loop rather than by the recursive calls.
+ *
+ * @author vsilaev
+ *
+ * @param <T>
+ *   a type of the result
+ * @param <C>
+ *   a type of the result accepted by the retry policy
+ */
+abstract class RetryingPromise<T extends C, C> extends CompletableFutureWrapper<T> {
+
+    private final boolean backoffFirstAttempt;
+    // Where to continue after the timer fires, null to continue on the timer thread
+    private final Executor resumeExecutor;
+    // Delay before the next speculative attempt, null when hedging is off
+    private final DelayPolicy<? super C> hedgeDelay;
+    private final int maxParallel;
+    private final Runnable resume = this::drive;
+
+    // Failed attempts and elapsed ticks to process in the loop
+    private final Queue<Object> events = new ConcurrentLinkedQueue<>();
+    private final Set<Attempt> outstanding = ConcurrentHashMap.newKeySet();
+
+    private volatile RetryContext<C> context;
+    // Verdict of the attempt to launch after the backoff
+    private volatile RetryPolicy.Verdict verdict;
+    // Pending backoff or hedge timer
+    private volatile Tick tick;
+    private volatile int started;
+    private volatile int wip;
+
+    RetryingPromise(boolean backoffFirstAttempt, Executor resumeExecutor, 
+                    DelayPolicy<? super C> hedgeDelay, int maxParallel) {
+        if (maxParallel <= 0) {
+            throw new IllegalArgumentException("Max parallel attempts must be positive: " + maxParallel);
+        }
+        this.backoffFirstAttempt = backoffFirstAttempt;
+        this.resumeExecutor = resumeExecutor;
+        this.hedgeDelay = hedgeDelay;
+        this.maxParallel = maxParallel;
+    }
+
+    RetryingPromise<T, C> start(RetryPolicy<? super C> retryPolicy) {
+        context = RetryContext.initial(retryPolicy);
+        drive();
+        return this;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (super.cancel(mayInterruptIfRunning)) {
+            cleanup();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Starts the attempt, the attempt must report its outcome via 
+     * {@link #attemptCompleted(Attempt, Object, Throwable, long)}
+     * @param attempt
+     *   the attempt to start
+     */
+    abstract void launch(Attempt attempt);
+
+    /**
+     * Stops the attempt if it is still running
+     * @param attempt
+     *   the attempt to stop
+     */
+    abstract void abort(Attempt attempt);
+
+    /**
+     * Continues the loop after the timer fires
+     * @param code
+     *   the continuation
+     */
+    void resume(Runnable code) {
+        if (null == resumeExecutor) {
+            code.run();
+        } else {
+            resumeExecutor.execute(code);
+        }
+    }
+
+    final void attemptCompleted(Attempt attempt, T value, Throwable error, long startTime) {
+        attempt.cancelTimeout();
+        if (isDone()) {
+            // Loser of the race, the outcome is unknown
+            outstanding.remove(attempt);
+            attempt.permit.release();
+            return;
+        }
+        attempt.permit.onComplete(error);
+        Duration callDuration = Duration.ofNanos(System.nanoTime() - startTime);
+        if (null == error && attempt.context.isValidResult(value, callDuration)) {
+            if (delegate.complete(value)) {
+                cleanup();
+            }
+            outstanding.remove(attempt);
+            return;
+        }
+        // The attempt stays outstanding until the failure is processed by the loop
+        attempt.nextContext = null == error ? 
+            attempt.context.nextRetry(callDuration, value) : attempt.context.nextRetry(callDuration, error);
+        events.add(attempt);
+        drive();
+    }
+
+    private void drive() {
+        if (WIP.getAndIncrement(this) != 0) {
+            // Running step will repeat
+            return;
+        }
+        do {
+            step();
+        } while (WIP.decrementAndGet(this) != 0);
+    }
+
+    private void step() {
+        if (isDone()) {
+            return;
+        }
+        if (0 == started && null == verdict) {
+            // The very first attempt
+            retry();
+            return;
+        }
+        Object event;
+        while (null != (event = events.poll())) {
+            if (event instanceof RetryingPromise.Tick) {
+                if (event == tick) {
+                    tick = null;
+                    tickElapsed();
+                }
+                // Otherwise the tick was replaced before it fired
+            } else {
+                @SuppressWarnings("unchecked")
+                Attempt failed = (Attempt)event;
+                outstanding.remove(failed);
+                context = failed.nextContext;
+                retry();
+            }
+            if (isDone()) {
+                return;
+            }
+        }
+    }
+
+    private void retry() {
+        RetryContext<C> ctx = actualContext();
+        RetryPolicy.Verdict currentVerdict = ctx.shouldContinue();
+        if (!currentVerdict.shouldExecute()) {
+            if (outstanding.isEmpty() && null == verdict) {
+                fail(ctx.asFailure());
+            }
+            // Otherwise wait for running attempts
+            return;
+        }
+        if (null != verdict) {
+            // The next attempt is already scheduled after the backoff
+            return;
+        }
+        Duration backoffDelay = currentVerdict.backoffDelay();
+        if (DelayPolicy.isValid(backoffDelay) && (backoffFirstAttempt || ctx.getRetryCount() > 0)) {
+            verdict = currentVerdict;
+            scheduleTick(backoffDelay);
+            return;
+        }
+        launch(ctx, currentVerdict);
+    }
+
+    private void tickElapsed() {
+        RetryPolicy.Verdict currentVerdict = verdict;
+        if (null != currentVerdict) {
+            // Backoff is over
+            verdict = null;
+            launch(actualContext(), currentVerdict);
+        } else if (outstanding.size() < maxParallel) {
+            // Running attempts are slow, admit the hedge 
+            RetryContext<C> ctx = actualContext();
+            RetryPolicy.Verdict hedgeVerdict = ctx.shouldHedge();
+            if (hedgeVerdict.shouldExecute()) {
+                launch(ctx, hedgeVerdict);
+            }
+        }
+    }
+
+    private void launch(RetryContext<C> ctx, RetryPolicy.Verdict currentVerdict) {
+        CircuitBreaker.Permit permit = ctx.tryAcquirePermission();
+        if (null == permit) {
+            // Circuit breaker is open, fail fast without touching executor
+            // unless other attempts are still running
+            if (outstanding.isEmpty()) {
+                fail(new CircuitBreakerOpenException(ctx.getLastError()));
+            }
+            return;
+        }
+        started++;
+        Attempt attempt = new Attempt(ctx, permit);
+        outstanding.add(attempt);
+        Duration executionTimeout = currentVerdict.timeout();
+        if (DelayPolicy.isValid(executionTimeout)) {
+            attempt.timeout = schedule(attempt, executionTimeout);
+        }
+        try {
+            launch(attempt);
+        } catch (RuntimeException ex) {
+            // I.e. RejectedExecutionException
+            // Release the permit of the circuit breaker, the dependency was not called
+            outstanding.remove(attempt);
+            attempt.cancelTimeout();
+            permit.release();
+            fail(ex);
+            return;
+        }
+        if (isDone()) {
+            // Completed concurrently, cleanup could miss the attempt
+            abort(attempt);
+            return;
+        }
+        if (null != hedgeDelay && null == tick && outstanding.size() < maxParallel) {
+            Duration delay = hedgeDelay.delay(ctx);
+            if (DelayPolicy.isValid(delay)) {
+                scheduleTick(delay);
+            }
+        }
+    }
+
+    private RetryContext<C> actualContext() {
+        RetryContext<C> ctx = context;
+        // Every started attempt counts as a retry, including hedges
+        int currentStarted = started;
+        if (ctx.getRetryCount() != currentStarted) {
+            ctx = ctx.overrideRetryCount(currentStarted);
+        }
+        int currentOutstanding = outstanding.size();
+        if (ctx.getOutstandingAttempts() != currentOutstanding) {
+            ctx = ctx.withOutstandingAttempts(currentOutstanding);
+        }
+        return ctx;
+    }
+
+    private void fail(Throwable ex) {
+        if (delegate.completeExceptionally(ex)) {
+            cleanup();
+        }
+    }
+
+    private void cleanup() {
+        Tick currentTick = tick;
+        if (null != currentTick) {
+            currentTick.cancel();
+        }
+        for (Attempt attempt : outstanding) {
+            attempt.cancelTimeout();
+            abort(attempt);
+        }
+    }
+
+    private void scheduleTick(Duration delay) {
+        Tick previousTick = tick;
+        if (null != previousTick) {
+            // Backoff replaces pending hedge
+            previousTick.cancel();
+        }
+        Tick newTick = new Tick();
+        tick = newTick;
+        newTick.timeout = schedule(newTick, delay);
+    }
+
+    private TimeoutScheduler.ScheduledTimeout schedule(Runnable code, Duration delay) {
+        Timeouts.TimeMeasurment tm = new Timeouts.TimeMeasurment(delay);
+        TimeoutScheduler.ScheduledTimeout timeout = TimeoutSchedulers.current().schedule(code, tm.amount, tm.unit);
+        if (isDone()) {
+            timeout.cancel();
+        }
+        return timeout;
+    }
+
+    /**
+     * Single launched attempt, fires its execution timeout when run
+     */
+    final class Attempt implements Runnable {
+        final RetryContext<C> context;
+        final CircuitBreaker.Permit permit;
+        // Running stage of the asynchronous attempt
+        volatile CompletionStage<? extends T> stage;
+        volatile TimeoutScheduler.ScheduledTimeout timeout;
+        // Published via the events queue
+        RetryContext<C> nextContext;
+
+        Attempt(RetryContext<C> context, CircuitBreaker.Permit permit) {
+            this.context = context;
+            this.permit = permit;
+        }
+
+        @Override
+        public void run() {
+            resume(() -> abort(this));
+        }
+
+        void cancelTimeout() {
+            TimeoutScheduler.ScheduledTimeout currentTimeout = timeout;
+            if (null != currentTimeout) {
+                timeout = null;
+                currentTimeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * Backoff or hedge timer, publishes itself as the event when fired
+     */
+    final class Tick implements Runnable {
+        volatile TimeoutScheduler.ScheduledTimeout timeout;
+
+        @Override
+        public void run() {
+            events.add(this);
+            resume(resume);
+        }
+
+        void cancel() {
+            TimeoutScheduler.ScheduledTimeout currentTimeout = timeout;
+            if (null != currentTimeout) {
+                currentTimeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * Retry loop of the blocking code executed on the executor, timed out attempts are interrupted
+     */
+    static final class Values<T extends C, C> extends RetryingPromise<T, C> implements Runnable {
+        private static final Object INTERRUPTING = new Object();
+        private static final Object INTERRUPTED  = new Object();
+
+        private final RetryCallable<T, C> codeBlock;
+        private final Executor executor;
+
+        private volatile Attempt current;
+        // Thread running the attempt, interruption marker or the attempt aborted before start
+        private volatile Object runner;
+
+        Values(RetryCallable<T, C> codeBlock, Executor executor) {
+            // Backoff timer only submits the attempt to the executor, no need to jump off the timer thread
+            super(true, null, null, 1);
+            this.codeBlock = codeBlock;
+            this.executor = executor;
+        }
+
+        @Override
+        void launch(Attempt attempt) {
+            current = attempt;
+            executor.execute(this);
+        }
+
+        @Override
+        void abort(Attempt attempt) {
+            if (attempt != current) {
+                return;
+            }
+            Object currentRunner = runner;
+            if (null == currentRunner || currentRunner instanceof RetryingPromise.Attempt) {
+                // Still queued (or marked by the abort of the previous attempt), 
+                // record the abort, so run() fails the attempt without calling the code
+                if (RUNNER.compareAndSet(this, currentRunner, attempt)) {
+                    return;
+                }
+                currentRunner = runner;
+            }
+            if (currentRunner instanceof Thread && 
+                RUNNER.compareAndSet(this, currentRunner, INTERRUPTING)) {
+                try {
+                    ((Thread)currentRunner).interrupt();
+                } finally {
+                    runner = INTERRUPTED;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Attempt attempt = current;
+            Thread thread = Thread.currentThread();
+            Object currentRunner;
+            do {
+                currentRunner = runner;
+                if (currentRunner == attempt) {
+                    // Timed out or cancelled while queued
+                    runner = null;
+                    attemptCompleted(attempt, null, new TimeoutException("Attempt timed out before start"), System.nanoTime());
+                    return;
+                }
+                // Otherwise the marker is null or left by the abort of the previous attempt
+            } while (!RUNNER.compareAndSet(this, currentRunner, thread));
+            if (isDone()) {
+                clearRunner(thread);
+                // Release the permit
+                attemptCompleted(attempt, null, new CancellationException(), System.nanoTime());
+                return;
+            }
+            long startTime = System.nanoTime();
+            T value = null;
+            Throwable error = null;
+            try {
+                value = codeBlock.call(attempt.context);
+            } catch (Exception ex) {
+                error = ex;
+            }
+            clearRunner(thread);
+            attemptCompleted(attempt, value, error, startTime);
+        }
+
+        private void clearRunner(Thread thread) {
+            if (!RUNNER.compareAndSet(this, thread, null)) {
+                // Wait until interrupt is delivered and clear it, the thread belongs to the executor
+                while (runner == INTERRUPTING) {
+                    Thread.yield();
+                }
+                Thread.interrupted();
+                runner = null;
+            }
+        }
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Values, Object> RUNNER =
+            AtomicReferenceFieldUpdater.newUpdater(Values.class, Object.class, "runner");
+    }
+
+    /**
+     * Retry loop of the asynchronous code, timed out and losing attempts are cancelled
+     */
+    static final class Futures<T extends C, C> extends RetryingPromise<T, C> {
+        private final RetryCallable<? extends CompletionStage<T>, C> futureFactory;
+        // Null to continue on the default asynchronous executor of the attempts
+        private final Executor executor;
+
+        private volatile CompletionStage<? extends T> lastCompleted;
+
+        Futures(RetryCallable<? extends CompletionStage<T>, C> futureFactory, Executor executor,
+                DelayPolicy<? super C> hedgeDelay, int maxParallel) {
+            // Jump off the timer thread, attempts may be expensive to start
+            super(false, executor, hedgeDelay, maxParallel);
+            this.futureFactory = futureFactory;
+            this.executor = executor;
+        }
+
+        @Override
+        void resume(Runnable code) {
+            if (null != executor) {
+                super.resume(code);
+                return;
+            }
+            CompletionStage<? extends T> stage = lastCompleted;
+            if (null == stage) {
+                // Only the timeout of the very first attempt, cancellation is cheap
+                // and the outcome is handled asynchronously anyway
+                code.run();
+            } else {
+                // Already completed, so continues immediately on its default executor
+                stage.whenCompleteAsync((r, e) -> code.run());
+            }
+        }
+
+        @Override
+        void launch(Attempt attempt) {
+            long startTime = System.nanoTime();
+            CompletionStage<? extends T> target;
+            try {
+                target = futureFactory.call(attempt.context);
+            } catch (Exception ex) {
+                attemptCompleted(attempt, null, ex, startTime);
+                return;
+            }
+            if (null == target) {
+                attemptCompleted(attempt, null, new NullPointerException("Attempt returned null"), startTime);
+                return;
+            }
+            attempt.stage = target;
+            BiConsumer<T, Throwable> handler = (value, ex) -> {
+                lastCompleted = target;
+                attemptCompleted(attempt, value, unwrapCompletionException(ex), startTime);
+            };
+            if (null == executor) {
+                // Like the timer, cancellation on timeout shouldn't continue on the timer thread 
+                target.whenCompleteAsync(handler);
+            } else {
+                target.whenComplete(handler);
+            }
+        }
+
+        @Override
+        void abort(Attempt attempt) {
+            CompletionStage<? extends T> target = attempt.stage;
+            if (null != target) {
+                cancelPromise(target, true);
+            }
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<RetryingPromise> WIP =
+        AtomicIntegerFieldUpdater.newUpdater(RetryingPromise.class, "wip");
+}
@@ -15,13 +15,18 @@
  */
 package net.tascalate.concurrent;
 
+import java.time.Duration;
 import java.util.Collection;
 import java.util.List;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
@@ -38,6 +43,8 @@ import java.util.concurrent.TimeoutException;
  */
 public class TaskExecutors {
     
+    public static final int DEFAULT_MAX_INLINE_DEPTH = 16;
+    
     private TaskExecutors() {}
     
     public static ThreadFactoryBuilder newThreadFactory() {
@@ -170,6 +177,155 @@ public class TaskExecutors {
         return adapt(Executors.newSingleThreadExecutor(threadFactory));
     }
 
+    /**
+     * Creates a work-stealing thread pool using the number of
+     * {@linkplain Runtime#availableProcessors available processors}
+     * as its target parallelism level.
+     * 
+     * @return the newly created thread pool
+     * @see #newWorkStealingPool(int)
+     */
+    public static TaskExecutorService newWorkStealingPool() {
+        return newWorkStealingPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a thread pool backed by {@link ForkJoinPool} in async (FIFO) mode. 
+     * Unlike pools with the single shared queue every worker has its own deque: tasks
+     * submitted from the worker thread (i.e. async continuations of {@link CompletableTask})
+     * are pushed to the deque of this worker, idle workers steal tasks from the busy ones.
+     * This reduces contention for the fine-grained fan-out / fan-in workloads.
+     * 
+     * @param parallelism
+     *            the targeted parallelism level
+     * @return the newly created thread pool
+     * @throws IllegalArgumentException
+     *             if {@code parallelism <= 0}
+     */
+    public static TaskExecutorService newWorkStealingPool(int parallelism) {
+        return newWorkStealingPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory);
+    }
+
+    /**
+     * Creates a work-stealing thread pool, using the provided factory to create new threads.
+     * 
+     * @param parallelism
+     *            the targeted parallelism level
+     * @param threadFactory
+     *            the factory to use when creating new threads
+     * @return the newly created thread pool
+     * @throws NullPointerException
+     *             if threadFactory is null
+     * @throws IllegalArgumentException
+     *             if {@code parallelism <= 0}
+     * @see #newWorkStealingPool(int)
+     */
+    public static TaskExecutorService newWorkStealingPool(int parallelism, ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory) {
+        return new WorkStealingTaskExecutor(new ForkJoinPool(parallelism, threadFactory, null, true));
+    }
+
+    /**
+     * Creates an Executor that starts a new virtual thread for each task. 
+     * Cancellation of the {@link Promise} returned from <code>submit(...)</code> with 
+     * <code>mayInterruptIfRunning</code> set interrupts the virtual thread running the task.
+     * Requires Java 21 or above.
+     * 
+     * @return the newly created executor
+     * @throws UnsupportedOperationException
+     *             if virtual threads are not supported by the Java runtime
+     */
+    public static TaskExecutorService newVirtualThreadPerTaskExecutor() {
+        return newThreadPerTaskExecutor(newThreadFactory().withNameFormat("virtual-%3$d-thread-%1$d").withVirtualThreads(true).build());
+    }
+
+    /**
+     * Creates an Executor that starts a new thread from the factory supplied for each task, 
+     * use it with the factory built via {@link ThreadFactoryBuilder#withVirtualThreads(boolean)}.
+     * Requires Java 21 or above.
+     * 
+     * @param threadFactory
+     *            the factory to use when creating new threads
+     * @return the newly created executor
+     * @throws UnsupportedOperationException
+     *             if the Java runtime doesn't support thread-per-task executors
+     */
+    public static TaskExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory) {
+        return adapt(VirtualThreads.newThreadPerTaskExecutor(threadFactory));
+    }
+
+    /**
+     * Creates an Executor that buffers submitted tasks and passes them to the <code>executorService</code>
+     * in batches, so many tiny tasks (i.e. async continuations) cost a single queue offer and a single 
+     * thread wake-up of the underlying executor. The batch is flushed as soon as the thread is available,
+     * tasks submitted while the batch waits for the thread are coalesced into it.
+     * 
+     * @param executorService
+     *            the underlying executor
+     * @param maxBatchSize
+     *            the maximum number of tasks in the batch
+     * @return the newly created executor
+     * @throws IllegalArgumentException
+     *             if {@code maxBatchSize <= 0}
+     */
+    public static TaskExecutorService newBatchingExecutor(ExecutorService executorService, int maxBatchSize) {
+        return new BatchingTaskExecutor(executorService, maxBatchSize, 0);
+    }
+
+    /**
+     * Creates an Executor that buffers submitted tasks and passes them to the <code>executorService</code>
+     * in batches. The batch is flushed when <code>maxBatchSize</code> tasks are buffered or 
+     * <code>maxDelay</code> elapsed since the first buffered task. 
+     * 
+     * @param executorService
+     *            the underlying executor
+     * @param maxBatchSize
+     *            the maximum number of tasks in the batch
+     * @param maxDelay
+     *            the maximum time the task may stay in the buffer
+     * @return the newly created executor
+     * @throws IllegalArgumentException
+     *             if {@code maxBatchSize <= 0} or {@code maxDelay} is negative
+     * @see #newBatchingExecutor(ExecutorService, int)
+     */
+    public static TaskExecutorService newBatchingExecutor(ExecutorService executorService, int maxBatchSize, Duration maxDelay) {
+        return new BatchingTaskExecutor(executorService, maxBatchSize, maxDelay.toNanos());
+    }
+
+    /**
+     * Creates an Executor with affinity to the worker threads of the <code>executor</code>, 
+     * use it as a default executor of async continuations via {@link Promise#defaultAsyncOn(Executor)}.
+     * A continuation scheduled from the thread that runs another task of the returned executor
+     * is executed inline, up to {@link #DEFAULT_MAX_INLINE_DEPTH} nested continuations per thread;
+     * with the {@link ForkJoinPool} it is pushed to the deque of the current worker instead.
+     * Continuations scheduled from other threads are submitted to the <code>executor</code>, 
+     * so the stage completed on one pool doesn't move continuations off this pool.
+     * 
+     * @param executor
+     *            the underlying executor
+     * @return the executor with affinity
+     * @see #withAffinity(Executor, int)
+     */
+    public static Executor withAffinity(Executor executor) {
+        return withAffinity(executor, DEFAULT_MAX_INLINE_DEPTH);
+    }
+
+    /**
+     * Creates an Executor with affinity to the worker threads of the <code>executor</code>.
+     * 
+     * @param executor
+     *            the underlying executor
+     * @param maxInlineDepth
+     *            the maximum number of nested continuations executed inline on the same thread,
+     *            zero disables inline execution
+     * @return the executor with affinity
+     * @throws IllegalArgumentException
+     *             if {@code maxInlineDepth < 0}
+     * @see #withAffinity(Executor)
+     */
+    public static Executor withAffinity(Executor executor, int maxInlineDepth) {
+        return new AffinityExecutor(executor, maxInlineDepth);
+    }
+
     public static TaskExecutorService adapt(ExecutorService executorService) {
         if (executorService instanceof TaskExecutorService) {
             return (TaskExecutorService) executorService;
@@ -211,19 +367,19 @@ public class TaskExecutors {
 
         public <T> Promise<T> submit(Callable<T> callable) {
             CompletableTask<T> task = createTask(callable);
-            delegate.execute(task);
+            execute(task);
             return task;
         }
 
         public <T> Promise<T> submit(Runnable codeBlock, T result) {
             CompletableTask<T> task = createTask(Executors.callable(codeBlock, result));
-            delegate.execute(task);
+            execute(task);
             return task;
         }
 
         public Promise<?> submit(Runnable codeBlock) {
             CompletableTask<?> task = createTask(Executors.callable(codeBlock, null));
-            delegate.execute(task);
+            execute(task);
             return task;
         }
 
@@ -252,4 +408,28 @@ public class TaskExecutors {
         }
 
     }
+    
+    static class WorkStealingTaskExecutor extends TaskExecutorServiceAdapter {
+        private final ForkJoinPool pool;
+        
+        WorkStealingTaskExecutor(ForkJoinPool pool) {
+            super(pool);
+            this.pool = pool;
+        }
+        
+        @Override
+        public void execute(Runnable command) {
+            Thread thread = Thread.currentThread();
+            if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread)thread).getPool() == pool) {
+                // Push to the deque of the current worker, Java 8 ForkJoinPool.execute uses shared submission queue
+                ForkJoinTask.adapt(command).fork();
+            } else {
+                pool.execute(command);
+            }
+        }
+        
+        ForkJoinPool pool() {
+            return pool;
+        }
+    }
 }
@@ -36,6 +36,7 @@ public class ThreadFactoryBuilder {
     private boolean isPriviledged = false;
     private Integer priority = null;
     private UncaughtExceptionHandler uncaughtExceptionHandler = null;
+    private boolean isVirtual = false;
 
     protected ThreadFactoryBuilder() {}
     
@@ -93,18 +94,46 @@ public class ThreadFactoryBuilder {
         return this;
     }
 
+    /**
+     * Creates virtual threads instead of platform ones. Virtual threads are always daemon threads 
+     * of the normal priority, so daemon flag, priority and thread group settings are ignored. 
+     * Requires Java 21 or above, the {@link #build()} method throws {@link UnsupportedOperationException}
+     * when the runtime doesn't support virtual threads.
+     * @param isVirtual
+     *   whether to create virtual threads
+     * @return
+     *   this builder
+     */
+    public ThreadFactoryBuilder withVirtualThreads(boolean isVirtual) {
+        this.isVirtual = isVirtual;
+        return this;
+    }
+    
+    public static boolean isVirtualThreadsSupported() {
+        return VirtualThreads.isSupported();
+    }
+    
     public ThreadFactory build() {
+        if (isVirtual && !VirtualThreads.isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this Java runtime");
+        }
         return 
             makeConfigured(
                 makePriviledged(
                     makeDefault(POOL_COUNTER.getAndIncrement(), nameFormat, threadGroup), 
                     isPriviledged, contextClassLoader
                 ), 
-                isDaemon, priority, uncaughtExceptionHandler
+                // Virtual threads are always daemons with normal priority
+                isVirtual ? null : isDaemon, isVirtual ? null : priority, uncaughtExceptionHandler
             );
     }
     
     protected Thread createThreadInstance(ThreadGroup threadGroup, Runnable runnable, String name) {
+        if (isVirtual) {
+            Thread thread = VirtualThreads.newThread(runnable);
+            thread.setName(name);
+            return thread;
+        }
         return new Thread(threadGroup, runnable, name);
     }
     
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backend that fires the one-shot actions behind timeouts and delays.
+ * <p>The scheduler in use is managed by {@link TimeoutSchedulers}; custom implementation
+ * may be either installed explicitly or registered as a {@link java.util.ServiceLoader} provider.
+ * 
+ * @author vsilaev
+ *
+ */
+public interface TimeoutScheduler {
+    
+    /**
+     * Schedules one-shot action to be executed after the delay specified
+     * @param action
+     *   the action to execute
+     * @param delay
+     *   the delay before execution
+     * @param timeUnit
+     *   the time unit of the delay
+     * @return
+     *   the handle to cancel pending action
+     */
+    ScheduledTimeout schedule(Runnable action, long delay, TimeUnit timeUnit);
+    
+    /**
+     * Handle of the pending action scheduled with {@link TimeoutScheduler}
+     */
+    @FunctionalInterface
+    public static interface ScheduledTimeout {
+        /**
+         * Cancels pending action
+         * @return
+         *   true if action was cancelled before execution, false otherwise
+         */
+        boolean cancel();
+    }
+    
+    /**
+     * Adapts {@link ScheduledExecutorService} to {@link TimeoutScheduler} interface
+     * @param executor
+     *   the executor to delegate scheduling to
+     * @return
+     *   the scheduler backed by the executor
+     */
+    public static TimeoutScheduler of(ScheduledExecutorService executor) {
+        return (action, delay, timeUnit) -> {
+            Future<?> future = executor.schedule(action, delay, timeUnit);
+            return () -> future.cancel(true);
+        };
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.ServiceLoader;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory and registry of {@link TimeoutScheduler}-s used by timeout-related operations 
+ * like {@link Promise#orTimeout(java.time.Duration)}, {@link Promise#onTimeout(Object, java.time.Duration)}, 
+ * {@link Promise#delay(java.time.Duration)} and by delays between retry attempts in {@link Promises#retry(Runnable, java.util.concurrent.Executor, RetryPolicy)}.
+ * <p>Unless explicitly {@link #install(TimeoutScheduler) installed}, the scheduler is resolved 
+ * once via {@link ServiceLoader} with fallback to the single-threaded timing wheel.
+ * @author vsilaev
+ *
+ */
+public class TimeoutSchedulers {
+    
+    private static volatile TimeoutScheduler installed;
+    
+    private TimeoutSchedulers() {}
+    
+    /**
+     * Returns the scheduler currently used by timeout-related operations
+     * @return
+     *   the current scheduler
+     */
+    public static TimeoutScheduler current() {
+        TimeoutScheduler result = installed;
+        if (null == result) {
+            synchronized (TimeoutSchedulers.class) {
+                result = installed;
+                if (null == result) {
+                    installed = result = loadDefault();
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Installs the scheduler to be used by timeout-related operations created afterwards; 
+     * timeouts that are already scheduled are fired and cancelled by the previous scheduler 
+     * @param scheduler
+     *   the new scheduler
+     * @return
+     *   the previous scheduler
+     */
+    public static TimeoutScheduler install(TimeoutScheduler scheduler) {
+        Objects.requireNonNull(scheduler, "scheduler");
+        synchronized (TimeoutSchedulers.class) {
+            TimeoutScheduler previous = current();
+            installed = scheduler;
+            return previous;
+        }
+    }
+    
+    /**
+     * Creates a hashed timing wheel served by a single daemon thread. 
+     * Scheduling and cancellation are O(1) while precision is limited by the tick duration.
+     * @param tickDuration
+     *   the duration of the single tick
+     * @param timeUnit
+     *   the time unit of the tick duration
+     * @param wheelSize
+     *   the number of buckets in the wheel, rounded up to the power of two
+     * @return
+     *   the new scheduler
+     */
+    public static TimeoutScheduler newTimingWheel(long tickDuration, TimeUnit timeUnit, int wheelSize) {
+        return newTimingWheel(tickDuration, timeUnit, wheelSize, newDefaultThreadFactory());
+    }
+    
+    /**
+     * Creates a hashed timing wheel served by a single thread created with the factory supplied. 
+     * Scheduling and cancellation are O(1) while precision is limited by the tick duration.
+     * @param tickDuration
+     *   the duration of the single tick
+     * @param timeUnit
+     *   the time unit of the tick duration
+     * @param wheelSize
+     *   the number of buckets in the wheel, rounded up to the power of two
+     * @param threadFactory
+     *   the factory of the worker thread
+     * @return
+     *   the new scheduler
+     */
+    public static TimeoutScheduler newTimingWheel(long tickDuration, TimeUnit timeUnit, int wheelSize, ThreadFactory threadFactory) {
+        return new TimingWheel(tickDuration, timeUnit, wheelSize, threadFactory);
+    }
+    
+    /**
+     * Creates the scheduler that spreads timeouts over several timing wheels, 
+     * each one served by own daemon thread, so firing timeouts is not serialized on a single thread  
+     * @param shards
+     *   the number of timing wheels
+     * @param tickDuration
+     *   the duration of the single tick
+     * @param timeUnit
+     *   the time unit of the tick duration
+     * @param wheelSize
+     *   the number of buckets in every wheel, rounded up to the power of two
+     * @return
+     *   the new scheduler
+     */
+    public static TimeoutScheduler newShardedTimingWheel(int shards, long tickDuration, TimeUnit timeUnit, int wheelSize) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Number of shards must be positive: " + shards);
+        }
+        ThreadFactory threadFactory = newDefaultThreadFactory();
+        TimeoutScheduler[] schedulers = new TimeoutScheduler[shards];
+        for (int i = 0; i < shards; i++) {
+            schedulers[i] = newTimingWheel(tickDuration, timeUnit, wheelSize, threadFactory);
+        }
+        return sharded(schedulers);
+    }
+
+    /**
+     * Creates the scheduler that spreads timeouts over the schedulers supplied.
+     * The shard is selected by the scheduling thread, so every thread consistently 
+     * uses the same shard.
+     * @param schedulers
+     *   the schedulers to delegate to
+     * @return
+     *   the new scheduler
+     */
+    public static TimeoutScheduler sharded(TimeoutScheduler... schedulers) {
+        if (schedulers.length == 0) {
+            throw new IllegalArgumentException("At least one scheduler is required");
+        }
+        if (schedulers.length == 1) {
+            return schedulers[0];
+        }
+        TimeoutScheduler[] shards = Arrays.copyOf(schedulers, schedulers.length);
+        return (action, delay, timeUnit) -> {
+            int idx = (int)((Thread.currentThread().getId() & Long.MAX_VALUE) % shards.length);
+            return shards[idx].schedule(action, delay, timeUnit);
+        };
+    }
+    
+    private static TimeoutScheduler loadDefault() {
+        Iterator<TimeoutScheduler> providers = ServiceLoader.load(TimeoutScheduler.class).iterator();
+        if (providers.hasNext()) {
+            return providers.next();
+        }
+        // Timing wheel offers O(1) schedule / cancel, that is important 
+        // while almost every timeout is cancelled soon after creation
+        return newTimingWheel(1, TimeUnit.MILLISECONDS, 512);
+    }
+    
+    private static ThreadFactory newDefaultThreadFactory() {
+        return new ThreadFactoryBuilder()
+            .withNameFormat(TimeoutScheduler.class.getName() + "-%3$d-%1$d")
+            .withDaemonFlag(true)
+            .build();
+    }
+}
@@ -19,13 +19,12 @@ import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 class Timeouts {
     
@@ -43,10 +42,10 @@ class Timeouts {
     static Promise<Duration> delay(Duration duration) {
         TimeMeasurment tm = new TimeMeasurment(duration);
         CompletablePromise<Duration> result = new CompletablePromise<>();
-        Future<?> timeout = scheduler.schedule( 
+        TimeoutScheduler.ScheduledTimeout timeout = TimeoutSchedulers.current().schedule( 
             () -> result.onSuccess(duration), tm.amount, tm.unit 
         );
-        return result.onCancel(() -> timeout.cancel(true));
+        return result.onCancel(timeout::cancel);
     }
     
     /**
@@ -80,11 +79,11 @@ class Timeouts {
     static <T> Promise<T> failAfter(Duration duration) {
         TimeMeasurment tm = new TimeMeasurment(duration);
         CompletablePromise<T> result = new CompletablePromise<>();
-        Future<?> timeout = scheduler.schedule(
+        TimeoutScheduler.ScheduledTimeout timeout = TimeoutSchedulers.current().schedule(
             () -> result.onFailure(new TimeoutException("Timeout after " + duration)), 
             tm.amount, tm.unit
         );
-        return result.onCancel(() -> timeout.cancel(true));
+        return result.onCancel(timeout::cancel);
     }
 
     /**
@@ -100,19 +99,31 @@ class Timeouts {
         return failAfter( toDuration(delay, timeUnit) );
     }
     
-    static Duration toDuration(long delay, TimeUnit timeUnit) {
-        return Duration.of(delay, toChronoUnit(timeUnit));
+    /**
+     * Creates a promise that is resolved with the outcome of the source or with the value
+     * of the supplier after delay specified, whichever comes first.
+     * Both sides are raced by a single subscriber that owns the single scheduler entry
+     * and completes the result directly, without any intermediate promises.
+     * @param source
+     * the promise to race with the timeout
+     * @param duration
+     * the duration of timeout
+     * @param onExpire
+     * the action to execute when timeout wins before resolving the result, may be null
+     * @param onTimeout
+     * the supplier of the value to resolve the result with when timeout wins
+     * @return
+     * the new promise
+     */
+    static <T> Promise<T> race(CompletionStage<? extends T> source, Duration duration, 
+                               Runnable onExpire, Supplier<? extends T> onTimeout) {
+        Race<T> result = new Race<>(duration, onExpire, onTimeout);
+        source.whenComplete(result);
+        return result;
     }
     
-    static <T, U> BiConsumer<T, U> timeoutsCleanup(Promise<T> self, Promise<?> timeout, boolean cancelOnTimeout) {
-        return (r, e) -> {
-            // Result comes from timeout and cancel-on-timeout is set
-            // If both are done then cancel has no effect anyway
-            if (cancelOnTimeout && timeout.isDone() && !timeout.isCancelled()) {
-                self.cancel(true);
-            }
-            timeout.cancel(true);
-        };
+    static Duration toDuration(long delay, TimeUnit timeUnit) {
+        return Duration.of(delay, toChronoUnit(timeUnit));
     }
     
     static <T, E extends Throwable> BiConsumer<T, E> configureDelay(Promise<? extends T> self, CompletableFuture<Try<? super T>> delayed, Duration duration, boolean delayOnError) {
@@ -150,6 +161,67 @@ class Timeouts {
         } 
     }     
     
+    static final class Race<T> extends CompletablePromise<T> implements Runnable, BiConsumer<T, Throwable> {
+        private final Runnable onExpire;
+        private final Supplier<? extends T> onTimeout;
+        private final TimeoutScheduler.ScheduledTimeout timeout;
+        private volatile int settled;
+        
+        Race(Duration duration, Runnable onExpire, Supplier<? extends T> onTimeout) {
+            this.onExpire  = onExpire;
+            this.onTimeout = onTimeout;
+            TimeMeasurment tm = new TimeMeasurment(duration);
+            timeout = TimeoutSchedulers.current().schedule(this, tm.amount, tm.unit);
+        }
+        
+        // Timeout side
+        @Override
+        public void run() {
+            if (!SETTLED.compareAndSet(this, 0, 1)) {
+                return;
+            }
+            if (null != onExpire) {
+                onExpire.run();
+            }
+            T value;
+            try {
+                value = onTimeout.get();
+            } catch (Throwable ex) {
+                onFailure(ex);
+                return;
+            }
+            onSuccess(value);
+        }
+        
+        // Source side
+        @Override
+        public void accept(T value, Throwable error) {
+            if (!SETTLED.compareAndSet(this, 0, 1)) {
+                return;
+            }
+            timeout.cancel();
+            if (null == error) {
+                onSuccess(value);
+            } else {
+                onFailure(error);
+            }
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (SETTLED.compareAndSet(this, 0, 1)) {
+                timeout.cancel();
+                return super.cancel(mayInterruptIfRunning);
+            } else {
+                return false;
+            }
+        }
+        
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Race> SETTLED = 
+            AtomicIntegerFieldUpdater.newUpdater(Race.class, "settled");
+    }
+    
     static class TimeMeasurment {
         final TimeUnit unit;
         final long amount;
@@ -171,17 +243,4 @@ class Timeouts {
     
     private static final Duration MAX_BY_NANOS  = Duration.ofNanos(Long.MAX_VALUE);
     private static final Duration MAX_BY_MILLIS = Duration.ofMillis(Long.MAX_VALUE);
-
-    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, new ThreadFactory() {
-        
-        private final ThreadFactory threadFactory = Executors.defaultThreadFactory();
-        
-        @Override
-        public Thread newThread(Runnable r) {
-            final Thread result = threadFactory.newThread(r);
-            result.setDaemon(true);
-            result.setName(Timeouts.class.getName());
-            return result;
-        }
-    });
 }
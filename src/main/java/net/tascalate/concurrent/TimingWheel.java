@@ -0,0 +1,275 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel that schedules and cancels timeouts in O(1).
+ * <p>Time is split into ticks of fixed duration, timeouts are hashed into the wheel
+ * buckets by their deadline tick and keep the number of full wheel rotations left.
+ * All bucket manipulations are performed by the single worker thread, client threads 
+ * only publish new and cancelled timeouts via lock-free queues.
+ * <p>The price is precision: the action is executed no earlier than its deadline 
+ * but may be delayed up to one tick.
+ * 
+ * @author vsilaev
+ *
+ */
+class TimingWheel implements TimeoutScheduler {
+    
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    
+    private final Queue<Timeout> pendingTimeouts   = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+    private final Thread worker;
+    private volatile int started;
+    private volatile boolean idle;
+    private volatile boolean stopped;
+    
+    // Accessed by worker thread only
+    private long tick;
+    private int activeTimeouts;
+    
+    TimingWheel(long tickDuration, TimeUnit timeUnit, int wheelSize, ThreadFactory threadFactory) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("Wheel size must be in range (0, 2^30]: " + wheelSize);
+        }
+        tickNanos = timeUnit.toNanos(tickDuration);
+        int normalizedSize = Integer.highestOneBit(wheelSize);
+        if (normalizedSize < wheelSize) {
+            normalizedSize <<= 1;
+        }
+        wheel = new Bucket[normalizedSize];
+        for (int i = 0; i < normalizedSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = normalizedSize - 1;
+        startTime = System.nanoTime();
+        worker = threadFactory.newThread(this::runWorker);
+    }
+    
+    @Override
+    public ScheduledTimeout schedule(Runnable action, long delay, TimeUnit timeUnit) {
+        long delayNanos = Math.max(0, timeUnit.toNanos(delay));
+        long deadline = System.nanoTime() - startTime + delayNanos;
+        if (delayNanos > 0 && deadline < 0) {
+            // Guard against overflow for "infinite" timeouts
+            deadline = Long.MAX_VALUE;
+        }
+        Timeout timeout = new Timeout(action, deadline);
+        pendingTimeouts.add(timeout);
+        if (started == 0 && STARTED.compareAndSet(this, 0, 1)) {
+            worker.start();
+        } else if (idle) {
+            LockSupport.unpark(worker);
+        }
+        return timeout;
+    }
+    
+    /**
+     * Stops the worker thread; timeouts that are not expired yet are never executed.
+     * The default scheduler lives as long as the JVM, so this is used by dedicated 
+     * instances only (like the ones created in tests).
+     */
+    void stop() {
+        stopped = true;
+        if (started != 0 || !STARTED.compareAndSet(this, 0, 1)) {
+            LockSupport.unpark(worker);
+        }
+    }
+    
+    private void runWorker() {
+        while (!stopped) {
+            if (activeTimeouts == 0 && cancelledTimeouts.isEmpty() && pendingTimeouts.isEmpty()) {
+                idle = true;
+                // Re-check after publishing idle flag to not miss unpark from schedule 
+                while (pendingTimeouts.isEmpty() && !stopped) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                if (stopped) {
+                    break;
+                }
+                // Nothing is in the wheel, so it's safe to skip idle ticks
+                tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+            }
+            long deadline = waitForNextTick();
+            processCancelledTimeouts();
+            transferPendingTimeouts();
+            wheel[(int)(tick & mask)].expireTimeouts(deadline);
+            tick++;
+        }
+    }
+    
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long remaining = deadline - (System.nanoTime() - startTime);
+            if (remaining <= 0) {
+                return deadline;
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+    
+    private void transferPendingTimeouts() {
+        Timeout timeout;
+        while (null != (timeout = pendingTimeouts.poll())) {
+            if (timeout.state != Timeout.ST_INIT) {
+                // Cancelled before it was placed to the wheel
+                continue;
+            }
+            long ticks = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            // Already expired timeouts go to the current bucket
+            wheel[(int)(Math.max(ticks, tick) & mask)].add(timeout);
+            activeTimeouts++;
+        }
+    }
+    
+    private void processCancelledTimeouts() {
+        Timeout timeout;
+        while (null != (timeout = cancelledTimeouts.poll())) {
+            Bucket bucket = timeout.bucket;
+            if (null != bucket) {
+                bucket.remove(timeout);
+            }
+        }
+    }
+    
+    final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+        
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (null == head) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+        
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (null != timeout.prev) {
+                timeout.prev.next = next;
+            }
+            if (null != timeout.next) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                if (timeout == tail) {
+                    head = tail = null;
+                } else {
+                    head = next;
+                }
+            } else if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+            activeTimeouts--;
+            return next;
+        }
+        
+        void expireTimeouts(long deadline) {
+            Timeout timeout = head;
+            while (null != timeout) {
+                if (timeout.remainingRounds <= 0) {
+                    Timeout next = remove(timeout);
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    } else {
+                        // Should not happen, but never fire too early
+                        add(timeout);
+                        activeTimeouts++;
+                        timeout.remainingRounds = 1;
+                    }
+                    timeout = next;
+                } else if (timeout.state == Timeout.ST_CANCELLED) {
+                    timeout = remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+    
+    final class Timeout implements ScheduledTimeout {
+        static final int ST_INIT      = 0;
+        static final int ST_CANCELLED = 1;
+        static final int ST_EXPIRED   = 2;
+        
+        private final Runnable action;
+        final long deadline;
+        volatile int state = ST_INIT;
+
+        // Accessed by worker thread only
+        long remainingRounds;
+        Bucket bucket;
+        Timeout next;
+        Timeout prev;
+        
+        Timeout(Runnable action, long deadline) {
+            this.action = action;
+            this.deadline = deadline;
+        }
+        
+        @Override
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            cancelledTimeouts.add(this);
+            return true;
+        }
+        
+        void expire() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            try {
+                action.run();
+            } catch (Throwable ex) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+            }
+        }
+    }
+    
+    private static final AtomicIntegerFieldUpdater<TimingWheel.Timeout> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(TimingWheel.Timeout.class, "state");
+    
+    private static final AtomicIntegerFieldUpdater<TimingWheel> STARTED =
+        AtomicIntegerFieldUpdater.newUpdater(TimingWheel.class, "started");
+}
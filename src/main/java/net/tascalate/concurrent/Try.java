@@ -60,6 +60,10 @@ abstract class Try<R> {
         return new Failure<R>(error);
     }
     
+    static <R> Try<R> of(R result, Throwable error) {
+        return null == error ? success(result) : failure(error);
+    }
+    
     static <R> Supplier<Try<R>> with(Supplier<? extends R> supplier) {
         return () -> call(supplier);
     }
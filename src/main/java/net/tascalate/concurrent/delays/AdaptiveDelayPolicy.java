@@ -0,0 +1,90 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent.delays;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import net.tascalate.concurrent.DelayPolicy;
+import net.tascalate.concurrent.RetryContext;
+
+/**
+ * Delay policy that derives the delay from the observed call latency: the value at the given
+ * percentile of the {@link LatencyHistogram} multiplied by the <code>multiplier</code>.
+ * <p>Until the histogram holds <code>minSamples</code> observations the delay is
+ * calculated by the wrapped policy.
+ *
+ * @author vsilaev
+ *
+ * @param <T>
+ *   a type of the result of the retried call
+ */
+public class AdaptiveDelayPolicy<T> extends DelayPolicyWrapper<T> {
+    public static final long DEFAULT_MIN_SAMPLES = 32;
+
+    private final LatencyHistogram histogram;
+    private final double percentile;
+    private final double multiplier;
+    private final long minSamples;
+
+    public AdaptiveDelayPolicy(DelayPolicy<? super T> target, LatencyHistogram histogram, double percentile, double multiplier) {
+        this(target, histogram, percentile, multiplier, DEFAULT_MIN_SAMPLES);
+    }
+
+    public AdaptiveDelayPolicy(DelayPolicy<? super T> target, LatencyHistogram histogram, double percentile, double multiplier, long minSamples) {
+        super(target);
+        if (!(percentile > 0 && percentile <= 1)) {
+            throw new IllegalArgumentException("Percentile must be in range (0, 1] but was: " + percentile);
+        }
+        if (multiplier <= 0) {
+            throw new IllegalArgumentException("Multiplier must be a positive number but was: " + multiplier);
+        }
+        if (minSamples < 1) {
+            throw new IllegalArgumentException("Min samples must be a positive number but was: " + minSamples);
+        }
+        this.histogram = Objects.requireNonNull(histogram);
+        this.percentile = percentile;
+        this.multiplier = multiplier;
+        this.minSamples = minSamples;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Creates the same policy that derives the delay from another histogram
+     * @param newHistogram
+     *   the histogram of the observed latency
+     * @return
+     *   the new delay policy
+     */
+    public AdaptiveDelayPolicy<T> withHistogram(LatencyHistogram newHistogram) {
+        return new AdaptiveDelayPolicy<>(target, newHistogram, percentile, multiplier, minSamples);
+    }
+
+    @Override
+    public Duration delay(RetryContext<? extends T> context) {
+        if (histogram.getSampleCount() < minSamples) {
+            return target.delay(context);
+        }
+        return DurationCalcs.safeTransform(
+            histogram.percentile(percentile),
+            (amount, dimIdx) -> DurationCalcs.toBoolean((double)Long.MAX_VALUE / Math.abs(amount) > multiplier),
+            (amount, dimIdx) -> (long)(amount * multiplier)
+        );
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent.delays;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Lock-free streaming histogram of call latencies.
+ * <p>Values are recorded in nanoseconds into log-linear buckets: every power of two
+ * is split into 32 linear sub-buckets, so any percentile is reported with at most ~3%
+ * relative error while the whole <code>long</code> range fits into a fixed array.
+ * Recording is a single atomic increment, so the histogram may be shared by any number
+ * of concurrent retry loops.
+ * <p>To follow the changing latency of the target service the histogram decays: once
+ * the number of samples reaches <code>maxSamples</code> every bucket is halved, so
+ * recent observations outweigh the older ones.
+ *
+ * @author vsilaev
+ *
+ */
+public final class LatencyHistogram {
+    public static final long DEFAULT_MAX_SAMPLES = 4096;
+
+    private static final int SUB_BUCKET_BITS  = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT     = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final long maxSamples;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private volatile long totalCount;
+    private volatile int decaying;
+
+    public LatencyHistogram() {
+        this(DEFAULT_MAX_SAMPLES);
+    }
+
+    public LatencyHistogram(long maxSamples) {
+        if (maxSamples < 2) {
+            throw new IllegalArgumentException("Max samples must be greater than 1 but was: " + maxSamples);
+        }
+        this.maxSamples = maxSamples;
+    }
+
+    public void record(Duration duration) {
+        record(DurationCalcs.safeExtractAmount(duration, 0));
+    }
+
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(0, nanos)));
+        if (TOTAL_COUNT.incrementAndGet(this) >= maxSamples) {
+            decay();
+        }
+    }
+
+    public long getSampleCount() {
+        return totalCount;
+    }
+
+    /**
+     * Returns the latency at the given percentile
+     * @param percentile
+     *   the percentile in range (0, 1], i.e. 0.5 for median or 0.99 for p99
+     * @return
+     *   the highest latency of the bucket where the percentile falls, or {@link Duration#ZERO}
+     *   when nothing was recorded yet
+     */
+    public Duration percentile(double percentile) {
+        if (!(percentile > 0 && percentile <= 1)) {
+            throw new IllegalArgumentException("Percentile must be in range (0, 1] but was: " + percentile);
+        }
+        long total = totalCount;
+        if (total <= 0) {
+            return Duration.ZERO;
+        }
+        long target = Math.max(1, (long)Math.ceil(percentile * total));
+        long seen = 0;
+        int lastNonEmpty = -1;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                seen += count;
+                lastNonEmpty = i;
+                if (seen >= target) {
+                    return Duration.ofNanos(highestValueOf(i));
+                }
+            }
+        }
+        // Buckets were concurrently decayed, the highest recorded value is the best guess
+        return lastNonEmpty < 0 ? Duration.ZERO : Duration.ofNanos(highestValueOf(lastNonEmpty));
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = counts.getAndSet(i, 0);
+            if (count > 0) {
+                TOTAL_COUNT.addAndGet(this, -count);
+            }
+        }
+    }
+
+    private void decay() {
+        if (!DECAYING.compareAndSet(this, 0, 1)) {
+            // Other thread is already halving buckets
+            return;
+        }
+        try {
+            if (totalCount < maxSamples) {
+                return;
+            }
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                long count;
+                do {
+                    count = counts.get(i);
+                } while (count > 0 && !counts.compareAndSet(i, count, count >>> 1));
+                long removed = count - (count >>> 1);
+                if (removed > 0) {
+                    TOTAL_COUNT.addAndGet(this, -removed);
+                }
+            }
+        } finally {
+            decaying = 0;
+        }
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int)value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long mantissa = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT + 1;
+        long next = mantissa << shift;
+        // The very last bucket ends at Long.MAX_VALUE
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+
+    private static final AtomicLongFieldUpdater<LatencyHistogram> TOTAL_COUNT =
+        AtomicLongFieldUpdater.newUpdater(LatencyHistogram.class, "totalCount");
+
+    private static final AtomicIntegerFieldUpdater<LatencyHistogram> DECAYING =
+        AtomicIntegerFieldUpdater.newUpdater(LatencyHistogram.class, "decaying");
+}
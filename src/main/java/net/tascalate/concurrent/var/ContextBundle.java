@@ -0,0 +1,154 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent.var;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Group of context variables stored in a single {@link ThreadLocal} slot.
+ * <p>Values of all variables of the bundle are kept in the immutable array: setting a variable
+ * replaces the array of the current thread with the modified copy. So the whole bundle is captured
+ * by reading the slot once, and applied / restored by writing it once, regardless of the number
+ * of variables. Use {@link ContextVar#relay(ContextBundle)} to propagate the bundle.
+ * <p>The bundle suits variables that are read often and modified rarely, like tracing or security context.
+ *
+ * @author vsilaev
+ *
+ */
+public final class ContextBundle {
+    private static final Object[] EMPTY = new Object[0];
+
+    private final String name;
+    private final ThreadLocal<Object[]> values = new ThreadLocal<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ContextVar<Object[]> bundleVar;
+
+    private ContextBundle(String name) {
+        this.name = name;
+        this.bundleVar = new ContextVar<Object[]>() {
+            @Override
+            public Object[] get() {
+                // Immutable, no need to copy
+                return values.get();
+            }
+
+            @Override
+            public void set(Object[] value) {
+                values.set(value);
+            }
+
+            @Override
+            public void remove() {
+                values.remove();
+            }
+
+            @Override
+            public String toString() {
+                return String.format("<bundle-ctx-var>[%s]", name);
+            }
+        };
+    }
+
+    public static ContextBundle create() {
+        return create(ContextTrampoline.generateVarName());
+    }
+
+    public static ContextBundle create(String name) {
+        return new ContextBundle(name);
+    }
+
+    public <T> ContextVar<T> newVar() {
+        return newVar(ContextTrampoline.generateVarName());
+    }
+
+    /**
+     * Defines new variable stored in this bundle
+     * @param <T>
+     *   a type of the variable
+     * @param varName
+     *   the name of the variable
+     * @return
+     *   the new variable
+     */
+    public <T> ContextVar<T> newVar(String varName) {
+        int index = size.getAndIncrement();
+        return new ContextVar<T>() {
+            @Override
+            public T get() {
+                return getValue(index);
+            }
+
+            @Override
+            public void set(T value) {
+                setValue(index, value);
+            }
+
+            @Override
+            public String toString() {
+                return String.format("<bundled-ctx-var>[%s.%s]", name, varName);
+            }
+        };
+    }
+
+    /**
+     * @return
+     *   the variable that holds values of all variables of this bundle
+     */
+    public ContextVar<Object[]> asContextVar() {
+        return bundleVar;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]", getClass().getSimpleName(), name);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T getValue(int index) {
+        Object[] current = values.get();
+        return null == current || index >= current.length ? null : (T)current[index];
+    }
+
+    void setValue(int index, Object value) {
+        Object[] current = values.get();
+        if (null == current) {
+            if (null == value) {
+                return;
+            }
+            current = EMPTY;
+        } else if (index < current.length && current[index] == value) {
+            return;
+        }
+        // Copy on write, captured arrays are shared between threads
+        Object[] next = Arrays.copyOf(current, Math.max(current.length, Math.max(index + 1, size.get())));
+        next[index] = value;
+        if (null == value && isEmpty(next)) {
+            values.remove();
+        } else {
+            values.set(next);
+        }
+    }
+
+    private static boolean isEmpty(Object[] bundleValues) {
+        for (Object v : bundleValues) {
+            if (null != v) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,342 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent.var;
+
+import java.util.List;
+
+/**
+ * Captured values of the context variables that are applied around every contextual task.
+ * <p>Snapshots of 1 to 4 variables keep variables and values in fields, larger snapshots use arrays,
+ * so neither {@link #apply()} nor {@link #restore(Object)} iterate collections. With
+ * {@link ContextVar.Propagation#OPTIMIZED} propagation nothing is allocated per task. With
+ * {@link ContextVar.Propagation#STRICT} propagation variables that already hold the captured values
+ * are not applied and are restored only if the task changed them, nothing is allocated when all of them
+ * hold the captured values.
+ *
+ * @author vsilaev
+ *
+ */
+abstract class ContextSnapshot {
+    // Restore state: all variables held the captured values
+    static final Object UNCHANGED = new Object();
+    // Restore state: remove all variables (OPTIMIZED propagation)
+    static final Object RESET = new Object();
+    // Saved null value of the single variable
+    private static final Object NULL = new Object();
+
+    final boolean strict;
+
+    ContextSnapshot(boolean strict) {
+        this.strict = strict;
+    }
+
+    static ContextSnapshot of(List<? extends ContextVar<?>> contextVars, ContextVar.Propagation propagation, List<Object> capturedContext) {
+        boolean strict = ContextVar.Propagation.STRICT.equals(propagation);
+        int size = Math.min(contextVars.size(), capturedContext.size());
+        switch (size) {
+            case 0:
+                return new Empty(strict);
+            case 1:
+                return new Snapshot1(strict, contextVars, capturedContext);
+            case 2:
+                return new Snapshot2(strict, contextVars, capturedContext);
+            case 3:
+                return new Snapshot3(strict, contextVars, capturedContext);
+            case 4:
+                return new Snapshot4(strict, contextVars, capturedContext);
+            default:
+                return new SnapshotN(strict, contextVars, capturedContext, size);
+        }
+    }
+
+    /**
+     * Applies captured values to the current thread
+     * @return
+     *   the state to pass to {@link #restore(Object)}
+     */
+    abstract Object apply();
+
+    abstract void restore(Object state);
+
+    @SuppressWarnings("unchecked")
+    static ContextVar<Object> var(List<? extends ContextVar<?>> contextVars, int idx) {
+        return (ContextVar<Object>)contextVars.get(idx);
+    }
+
+    static void write(ContextVar<Object> contextVar, Object value) {
+        if (null == value) {
+            contextVar.remove();
+        } else {
+            contextVar.set(value);
+        }
+    }
+    
+    static void revert(ContextVar<Object> contextVar, Object previous, Object captured) {
+        // The variable that held the captured value was not applied, yet the task may change it
+        if (previous != captured || contextVar.get() != previous) {
+            write(contextVar, previous);
+        }
+    }
+
+    static final class Empty extends ContextSnapshot {
+        Empty(boolean strict) {
+            super(strict);
+        }
+
+        @Override
+        Object apply() {
+            return UNCHANGED;
+        }
+
+        @Override
+        void restore(Object state) {
+        }
+    }
+
+    static final class Snapshot1 extends ContextSnapshot {
+        private final ContextVar<Object> v1;
+        private final Object c1;
+
+        Snapshot1(boolean strict, List<? extends ContextVar<?>> contextVars, List<Object> capturedContext) {
+            super(strict);
+            v1 = var(contextVars, 0); c1 = capturedContext.get(0);
+        }
+
+        @Override
+        Object apply() {
+            if (!strict) {
+                write(v1, c1);
+                return RESET;
+            }
+            Object p1 = v1.get();
+            if (p1 == c1) {
+                return UNCHANGED;
+            }
+            write(v1, c1);
+            return null == p1 ? NULL : p1;
+        }
+
+        @Override
+        void restore(Object state) {
+            if (state == UNCHANGED) {
+                revert(v1, c1, c1);
+            } else if (state == RESET) {
+                v1.remove();
+            } else {
+                write(v1, state == NULL ? null : state);
+            }
+        }
+    }
+
+    static final class Snapshot2 extends ContextSnapshot {
+        private final ContextVar<Object> v1, v2;
+        private final Object c1, c2;
+
+        Snapshot2(boolean strict, List<? extends ContextVar<?>> contextVars, List<Object> capturedContext) {
+            super(strict);
+            v1 = var(contextVars, 0); c1 = capturedContext.get(0);
+            v2 = var(contextVars, 1); c2 = capturedContext.get(1);
+        }
+
+        @Override
+        Object apply() {
+            if (!strict) {
+                write(v1, c1);
+                write(v2, c2);
+                return RESET;
+            }
+            Object p1 = v1.get(), p2 = v2.get();
+            if (p1 == c1 && p2 == c2) {
+                return UNCHANGED;
+            }
+            if (p1 != c1) write(v1, c1);
+            if (p2 != c2) write(v2, c2);
+            return new Object[] {p1, p2};
+        }
+
+        @Override
+        void restore(Object state) {
+            if (state == UNCHANGED) {
+                revert(v1, c1, c1);
+                revert(v2, c2, c2);
+            } else if (state == RESET) {
+                v1.remove();
+                v2.remove();
+            } else {
+                Object[] p = (Object[])state;
+                revert(v1, p[0], c1);
+                revert(v2, p[1], c2);
+            }
+        }
+    }
+
+    static final class Snapshot3 extends ContextSnapshot {
+        private final ContextVar<Object> v1, v2, v3;
+        private final Object c1, c2, c3;
+
+        Snapshot3(boolean strict, List<? extends ContextVar<?>> contextVars, List<Object> capturedContext) {
+            super(strict);
+            v1 = var(contextVars, 0); c1 = capturedContext.get(0);
+            v2 = var(contextVars, 1); c2 = capturedContext.get(1);
+            v3 = var(contextVars, 2); c3 = capturedContext.get(2);
+        }
+
+        @Override
+        Object apply() {
+            if (!strict) {
+                write(v1, c1);
+                write(v2, c2);
+                write(v3, c3);
+                return RESET;
+            }
+            Object p1 = v1.get(), p2 = v2.get(), p3 = v3.get();
+            if (p1 == c1 && p2 == c2 && p3 == c3) {
+                return UNCHANGED;
+            }
+            if (p1 != c1) write(v1, c1);
+            if (p2 != c2) write(v2, c2);
+            if (p3 != c3) write(v3, c3);
+            return new Object[] {p1, p2, p3};
+        }
+
+        @Override
+        void restore(Object state) {
+            if (state == UNCHANGED) {
+                revert(v1, c1, c1);
+                revert(v2, c2, c2);
+                revert(v3, c3, c3);
+            } else if (state == RESET) {
+                v1.remove();
+                v2.remove();
+                v3.remove();
+            } else {
+                Object[] p = (Object[])state;
+                revert(v1, p[0], c1);
+                revert(v2, p[1], c2);
+                revert(v3, p[2], c3);
+            }
+        }
+    }
+
+    static final class Snapshot4 extends ContextSnapshot {
+        private final ContextVar<Object> v1, v2, v3, v4;
+        private final Object c1, c2, c3, c4;
+
+        Snapshot4(boolean strict, List<? extends ContextVar<?>> contextVars, List<Object> capturedContext) {
+            super(strict);
+            v1 = var(contextVars, 0); c1 = capturedContext.get(0);
+            v2 = var(contextVars, 1); c2 = capturedContext.get(1);
+            v3 = var(contextVars, 2); c3 = capturedContext.get(2);
+            v4 = var(contextVars, 3); c4 = capturedContext.get(3);
+        }
+
+        @Override
+        Object apply() {
+            if (!strict) {
+                write(v1, c1);
+                write(v2, c2);
+                write(v3, c3);
+                write(v4, c4);
+                return RESET;
+            }
+            Object p1 = v1.get(), p2 = v2.get(), p3 = v3.get(), p4 = v4.get();
+            if (p1 == c1 && p2 == c2 && p3 == c3 && p4 == c4) {
+                return UNCHANGED;
+            }
+            if (p1 != c1) write(v1, c1);
+            if (p2 != c2) write(v2, c2);
+            if (p3 != c3) write(v3, c3);
+            if (p4 != c4) write(v4, c4);
+            return new Object[] {p1, p2, p3, p4};
+        }
+
+        @Override
+        void restore(Object state) {
+            if (state == UNCHANGED) {
+                revert(v1, c1, c1);
+                revert(v2, c2, c2);
+                revert(v3, c3, c3);
+                revert(v4, c4, c4);
+            } else if (state == RESET) {
+                v1.remove();
+                v2.remove();
+                v3.remove();
+                v4.remove();
+            } else {
+                Object[] p = (Object[])state;
+                revert(v1, p[0], c1);
+                revert(v2, p[1], c2);
+                revert(v3, p[2], c3);
+                revert(v4, p[3], c4);
+            }
+        }
+    }
+
+    static final class SnapshotN extends ContextSnapshot {
+        private final ContextVar<Object>[] vars;
+        private final Object[] captured;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        SnapshotN(boolean strict, List<? extends ContextVar<?>> contextVars, List<Object> capturedContext, int size) {
+            super(strict);
+            vars = new ContextVar[size];
+            captured = new Object[size];
+            for (int i = 0; i < size; i++) {
+                vars[i] = var(contextVars, i);
+                captured[i] = capturedContext.get(i);
+            }
+        }
+
+        @Override
+        Object apply() {
+            int size = vars.length;
+            if (!strict) {
+                for (int i = 0; i < size; i++) {
+                    write(vars[i], captured[i]);
+                }
+                return RESET;
+            }
+            Object[] previous = null;
+            for (int i = 0; i < size; i++) {
+                Object value = vars[i].get();
+                if (value != captured[i]) {
+                    if (null == previous) {
+                        // Values before i are identical to captured ones
+                        previous = captured.clone();
+                    }
+                    previous[i] = value;
+                    write(vars[i], captured[i]);
+                }
+            }
+            return null == previous ? UNCHANGED : previous;
+        }
+
+        @Override
+        void restore(Object state) {
+            int size = vars.length;
+            if (state == RESET) {
+                for (int i = 0; i < size; i++) {
+                    vars[i].remove();
+                }
+            } else {
+                Object[] previous = state == UNCHANGED ? captured : (Object[])state;
+                for (int i = 0; i < size; i++) {
+                    revert(vars[i], previous[i], captured[i]);
+                }
+            }
+        }
+    }
+}
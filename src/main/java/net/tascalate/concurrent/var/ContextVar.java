@@ -136,6 +136,18 @@ public interface ContextVar<T> {
         return relay(ContextVar.from(threadLocal));
     }
 
+    /**
+     * Creates a trampoline that propagates all variables of the bundle at once,
+     * with a single {@link ThreadLocal} access to capture, apply or restore them
+     * @param bundle
+     *   the bundle of context variables
+     * @return
+     *   the trampoline for the bundle
+     */
+    public static ContextTrampoline relay(ContextBundle bundle) {
+        return relay(bundle.asContextVar());
+    }
+
     public static ContextTrampoline relay(ContextVar<?>... contextVars) {
         return new ContextTrampoline(Arrays.asList(contextVars));
     }
@@ -37,11 +37,11 @@ public class ContextualExecutor<D extends Executor> extends ContextualObject imp
 
     protected Runnable contextualRunnable(Runnable original) {
         return () -> {
-            List<Object> originalContext = applyCapturedContext(); 
+            Object originalContext = applyContext(); 
             try {
                 original.run();
             } finally {
-                restoreContextVars(originalContext);
+                restoreContext(originalContext);
             }            
         };
     }
@@ -105,11 +105,11 @@ public class ContextualExecutorService<D extends ExecutorService>
     
     protected <T> Callable<T> contextualCallable(Callable<T> original) {
         return () -> {
-            List<Object> originalContext = applyCapturedContext(); 
+            Object originalContext = applyContext(); 
             try {
                 return original.call();
             } finally {
-                restoreContextVars(originalContext);
+                restoreContext(originalContext);
             }
         };
     }
@@ -24,6 +24,7 @@ abstract class ContextualObject {
     private final List<ContextVar<?>> contextVars;
     private final ContextVar.Propagation propagation;
     private final List<Object> capturedContext;
+    private final ContextSnapshot snapshot;
     
     protected ContextualObject(List<ContextVar<?>> contextVars, ContextVar.Propagation propagation, List<Object> capturedContext) {
         this.contextVars = null == contextVars ? 
@@ -34,7 +35,22 @@ abstract class ContextualObject {
         
         this.capturedContext = null == capturedContext ?
             Collections.emptyList() : 
-            Collections.unmodifiableList(capturedContext);        
+            Collections.unmodifiableList(capturedContext);
+        
+        this.snapshot = ContextSnapshot.of(this.contextVars, this.propagation, this.capturedContext);
+    }
+    
+    /**
+     * Applies the captured context to the current thread
+     * @return
+     *   the opaque state that must be passed to {@link #restoreContext(Object)} after the task
+     */
+    protected final Object applyContext() {
+        return snapshot.apply();
+    }
+    
+    protected final void restoreContext(Object contextState) {
+        snapshot.restore(contextState);
     }
     
     protected final List<Object> applyCapturedContext() {
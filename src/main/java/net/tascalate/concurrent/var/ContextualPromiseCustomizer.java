@@ -33,11 +33,11 @@ class ContextualPromiseCustomizer extends ContextualObject implements PromiseCus
     @Override
     public Runnable wrapArgument(Runnable original, boolean async) {
         return () -> {
-            List<Object> originalContext = applyCapturedContext();
+            Object originalContext = applyContext();
             try {
                 original.run();
             } finally {
-                restoreContextVars(originalContext);
+                restoreContext(originalContext);
             }
         };
 
@@ -46,11 +46,11 @@ class ContextualPromiseCustomizer extends ContextualObject implements PromiseCus
     @Override
     public <U, R> Function<U, R> wrapArgument(Function<U, R> original, boolean async, boolean isCompose) {
         return u -> {
-            List<Object> originalContext = applyCapturedContext();
+            Object originalContext = applyContext();
             try {
                 return original.apply(u);
             } finally {
-                restoreContextVars(originalContext);
+                restoreContext(originalContext);
             }
         };
     }
@@ -58,11 +58,11 @@ class ContextualPromiseCustomizer extends ContextualObject implements PromiseCus
     @Override
     public <U> Consumer<U> wrapArgument(Consumer<U> original, boolean async) {
         return u -> {
-            List<Object> originalContext = applyCapturedContext();
+            Object originalContext = applyContext();
             try {
                 original.accept(u);
             } finally {
-                restoreContextVars(originalContext);
+                restoreContext(originalContext);
             }
         };
     }
@@ -70,11 +70,11 @@ class ContextualPromiseCustomizer extends ContextualObject implements PromiseCus
     @Override
     public <U> Supplier<U> wrapArgument(Supplier<U> original, boolean async) {
         return () -> {
-            List<Object> originalContext = applyCapturedContext();
+            Object originalContext = applyContext();
             try {
                 return original.get();
             } finally {
-                restoreContextVars(originalContext);
+                restoreContext(originalContext);
             }
         };
     }
@@ -82,11 +82,11 @@ class ContextualPromiseCustomizer extends ContextualObject implements PromiseCus
     @Override
     public <U> Predicate<U> wrapArgument(Predicate<U> original, boolean async) {
         return u -> {
-            List<Object> originalContext = applyCapturedContext();
+            Object originalContext = applyContext();
             try {
                 return original.test(u);
             } finally {
-                restoreContextVars(originalContext);
+                restoreContext(originalContext);
             }
         };
     }
@@ -94,11 +94,11 @@ class ContextualPromiseCustomizer extends ContextualObject implements PromiseCus
     @Override
     public <U, V, R> BiFunction<U, V, R> wrapArgument(BiFunction<U, V, R> original, boolean async) {
         return (u, v) -> {
-            List<Object> originalContext = applyCapturedContext();
+            Object originalContext = applyContext();
             try {
                 return original.apply(u, v);
             } finally {
-                restoreContextVars(originalContext);
+                restoreContext(originalContext);
             }
         };
     }
@@ -106,11 +106,11 @@ class ContextualPromiseCustomizer extends ContextualObject implements PromiseCus
     @Override
     public <U, V> BiConsumer<U, V> wrapArgument(BiConsumer<U, V> original, boolean async) {
         return (u, v) -> {
-            List<Object> originalContext = applyCapturedContext();
+            Object originalContext = applyContext();
             try {
                 original.accept(u, v);
             } finally {
-                restoreContextVars(originalContext);
+                restoreContext(originalContext);
             }
         };
     }
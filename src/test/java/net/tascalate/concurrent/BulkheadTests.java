@@ -0,0 +1,125 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BulkheadTests {
+    
+    @Test
+    public void testRejectsFastWhenFull() {
+        Bulkhead bulkhead = Bulkhead.of(2);
+        CompletablePromise<String> a = new CompletablePromise<>();
+        CompletablePromise<String> b = new CompletablePromise<>();
+        bulkhead.execute(() -> a);
+        bulkhead.execute(() -> b);
+        Assert.assertEquals(2, bulkhead.getInFlight());
+        
+        Promise<String> rejected = bulkhead.execute(() -> Promises.success("c"));
+        try {
+            rejected.join();
+            Assert.fail("Rejection expected");
+        } catch (CompletionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        }
+        a.onSuccess("a");
+        Assert.assertEquals(1, bulkhead.getInFlight());
+        Assert.assertEquals("c", bulkhead.execute(() -> Promises.success("c")).join());
+    }
+    
+    @Test
+    public void testQueuedCallsRunInOrderOnRelease() {
+        Bulkhead bulkhead = Bulkhead.of(1, 10);
+        CompletablePromise<String> first = new CompletablePromise<>();
+        List<String> order = new ArrayList<>();
+        Promise<String> p1 = bulkhead.execute(() -> first);
+        Promise<String> p2 = bulkhead.execute(() -> { order.add("second"); return Promises.success("2"); });
+        Promise<String> p3 = bulkhead.execute(() -> { order.add("third"); return Promises.success("3"); });
+        Assert.assertEquals(2, bulkhead.getQueued());
+        Assert.assertFalse(p2.isDone());
+        
+        first.onSuccess("1");
+        Assert.assertEquals("1", p1.join());
+        Assert.assertEquals("2", p2.join());
+        Assert.assertEquals("3", p3.join());
+        Assert.assertEquals(2, order.size());
+        Assert.assertEquals("second", order.get(0));
+        Assert.assertEquals(0, bulkhead.getInFlight());
+        Assert.assertEquals(0, bulkhead.getQueued());
+    }
+    
+    @Test
+    public void testCancelledQueuedCallIsSkipped() {
+        Bulkhead bulkhead = Bulkhead.of(1, 10);
+        CompletablePromise<String> first = new CompletablePromise<>();
+        bulkhead.execute(() -> first);
+        boolean[] invoked = {false};
+        Promise<String> queued = bulkhead.execute(() -> { invoked[0] = true; return Promises.success("x"); });
+        Assert.assertTrue(queued.cancel(true));
+        // The slot of the cancelled call is free right away
+        Assert.assertEquals(0, bulkhead.getQueued());
+        first.onSuccess("1");
+        Assert.assertFalse(invoked[0]);
+        Assert.assertEquals(0, bulkhead.getInFlight());
+    }
+    
+    @Test
+    public void testInvokerReturningNullReleasesPermit() {
+        Bulkhead bulkhead = Bulkhead.of(1, 10);
+        CompletablePromise<String> first = new CompletablePromise<>();
+        bulkhead.execute(() -> first);
+        Promise<String> broken = bulkhead.execute(() -> null);
+        Promise<String> next = bulkhead.execute(() -> Promises.success("next"));
+        first.onSuccess("1");
+        try {
+            broken.join();
+            Assert.fail("Failure expected");
+        } catch (CompletionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof NullPointerException);
+        }
+        Assert.assertEquals("next", next.join());
+        Assert.assertEquals("later", bulkhead.execute(() -> Promises.success("later")).join());
+        Assert.assertEquals(0, bulkhead.getInFlight());
+        Assert.assertEquals(0, bulkhead.getQueued());
+    }
+    
+    @Test
+    public void testAdaptiveLimitFollowsOverload() {
+        Bulkhead bulkhead = Bulkhead.adaptive(10, 2, 20, 0);
+        for (int i = 0; i < 10; i++) {
+            bulkhead.execute(() -> Promises.failure(new TimeoutException()));
+        }
+        Assert.assertEquals(3, bulkhead.getLimit());
+        
+        for (int i = 0; i < 200; i++) {
+            List<CompletablePromise<String>> running = new ArrayList<>();
+            for (int j = 0; j < bulkhead.getLimit(); j++) {
+                CompletablePromise<String> p = new CompletablePromise<>();
+                running.add(p);
+                bulkhead.execute(() -> p);
+            }
+            running.forEach(p -> p.onSuccess("done"));
+        }
+        Assert.assertTrue(bulkhead.getLimit() > 3);
+    }
+}
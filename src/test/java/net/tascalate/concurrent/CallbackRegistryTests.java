@@ -0,0 +1,155 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CallbackRegistryTests {
+    
+    private TaskExecutorService executor;
+
+    @Before
+    public void setup() {
+        executor = TaskExecutors.newFixedThreadPool(4);
+    }
+    
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+    
+    @Test
+    public void testCallbacksAreCalledInRegistrationOrder() {
+        CallbackRegistry<String> registry = new CallbackRegistry<>();
+        List<Integer> calls = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int idx = i;
+            registry.addCallbacks(c -> call(c), r -> calls.add(idx), e -> null, PromiseAdapter.SAME_THREAD_EXECUTOR);
+        }
+        Assert.assertTrue(registry.success("done"));
+        Assert.assertFalse(registry.failure(new IllegalStateException()));
+        Assert.assertEquals(100, calls.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(Integer.valueOf(i), calls.get(i));
+        }
+    }
+    
+    @Test
+    public void testConcurrentRegistrationCallsEachCallbackOnce() throws Exception {
+        int threads = 4;
+        int perThread = 2000;
+        CompletablePromise<Integer> origin = new CompletablePromise<>();
+        Promise<Integer> root = CompletableTask.asyncOn(executor).thenCompose(__ -> origin);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch registered = new CountDownLatch(threads);
+        CountDownLatch completed = new CountDownLatch(threads * perThread);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    root.thenAccept(v -> {
+                        calls.incrementAndGet();
+                        completed.countDown();
+                    });
+                    if (i == perThread / 2) {
+                        registered.countDown();
+                    }
+                }
+            });
+        }
+        // Complete while other threads are still adding callbacks
+        registered.await();
+        origin.onSuccess(42);
+        completed.await();
+        Assert.assertEquals(threads * perThread, calls.get());
+    }
+    
+    @Test
+    public void testDeepSynchronousChainDoesNotOverflow() {
+        CompletablePromise<Integer> origin = new CompletablePromise<>();
+        Promise<Integer> root = CompletableTask.asyncOn(executor).thenCompose(__ -> origin);
+        Promise<Integer> last = root;
+        for (int i = 0; i < 100000; i++) {
+            last = last.thenApply(v -> v + 1);
+        }
+        origin.onSuccess(0);
+        Assert.assertEquals(Integer.valueOf(100000), last.join());
+    }
+    
+    @Test
+    public void testCancelInterruptsRunningTask() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Promise<String> task = CompletableTask.submit(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException ex) {
+                interrupted.countDown();
+            }
+            return "done";
+        }, executor);
+        started.await();
+        Assert.assertTrue(task.cancel(true));
+        Assert.assertTrue(task.isCancelled());
+        Assert.assertTrue(task.isDone());
+        Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        try {
+            task.get();
+            Assert.fail("CancellationException expected");
+        } catch (CancellationException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testGetUnwrapsFailure() throws Exception {
+        Promise<String> task = CompletableTask.submit(() -> { throw new IllegalStateException("boom"); }, executor);
+        try {
+            task.get(5, TimeUnit.SECONDS);
+            Assert.fail("ExecutionException expected");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        Promise<String> pending = new CompletablePromise<>();
+        try {
+            pending.get(10, TimeUnit.MILLISECONDS);
+            Assert.fail("TimeoutException expected");
+        } catch (TimeoutException ex) {
+            // expected
+        }
+    }
+    
+    private static void call(Callable<?> c) {
+        try {
+            c.call();
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
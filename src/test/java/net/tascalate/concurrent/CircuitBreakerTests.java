@@ -0,0 +1,142 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTests {
+    
+    private final RetryPolicy<Object> classifier = new RetryPolicy<>().retryOn(IllegalStateException.class);
+    
+    @Test
+    public void testOpensOnFailureRateAndFailsFast() {
+        CircuitBreaker breaker = CircuitBreaker.of(classifier, 0.5, 4, Duration.ofSeconds(10), Duration.ofSeconds(10), 1);
+        for (int i = 0; i < 4; i++) {
+            breaker.execute(() -> Promises.failure(new IllegalStateException()));
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        
+        AtomicInteger submitted = new AtomicInteger();
+        Executor executor = r -> { submitted.incrementAndGet(); r.run(); };
+        Promise<String> rejected = breaker.submit(() -> "value", executor);
+        Assert.assertTrue(rejected.isDone());
+        Assert.assertEquals(0, submitted.get());
+        try {
+            rejected.join();
+            Assert.fail("Failure expected");
+        } catch (CompletionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof CircuitBreakerOpenException);
+        }
+    }
+    
+    @Test
+    public void testNonRetryableErrorsDoNotOpen() {
+        CircuitBreaker breaker = CircuitBreaker.of(classifier, 0.5, 4, Duration.ofSeconds(10), Duration.ofSeconds(10), 1);
+        for (int i = 0; i < 10; i++) {
+            breaker.execute(() -> Promises.failure(new IllegalArgumentException()));
+        }
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertEquals(0.0, breaker.getFailureRate(), 0.0001);
+    }
+    
+    @Test
+    public void testHalfOpenTrialsCloseBreaker() throws InterruptedException {
+        CircuitBreaker breaker = CircuitBreaker.of(classifier, 0.5, 2, Duration.ofSeconds(10), Duration.ofMillis(50), 2);
+        breaker.execute(() -> Promises.failure(new IllegalStateException()));
+        breaker.execute(() -> Promises.failure(new IllegalStateException()));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(100);
+        
+        CompletablePromise<String> first = new CompletablePromise<>();
+        CompletablePromise<String> second = new CompletablePromise<>();
+        breaker.execute(() -> first);
+        breaker.execute(() -> second);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // Trial permits are exhausted
+        Assert.assertNull(breaker.tryAcquirePermission());
+        first.onSuccess("a");
+        second.onSuccess("b");
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertNotNull(breaker.tryAcquirePermission());
+    }
+    
+    @Test
+    public void testRejectedAttemptReleasesTrialPermit() throws InterruptedException {
+        CircuitBreaker breaker = CircuitBreaker.of(classifier, 0.5, 2, Duration.ofSeconds(10), Duration.ofMillis(50), 1);
+        breaker.execute(() -> Promises.failure(new IllegalStateException()));
+        breaker.execute(() -> Promises.failure(new IllegalStateException()));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(100);
+        
+        RetryPolicy<Object> policy = classifier.withMaxRetries(10).withoutBackoff().withCircuitBreaker(breaker);
+        Executor rejecting = r -> { throw new RejectedExecutionException(); };
+        try {
+            Promises.retry((Callable<Object>)() -> "value", rejecting, policy).join();
+            Assert.fail("Failure expected");
+        } catch (CompletionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        }
+        // The dependency was not called, the rejected trial is not a success
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertNotNull(breaker.tryAcquirePermission());
+    }
+    
+    @Test
+    public void testLateOutcomesOfPreviousPhaseAreIgnored() throws InterruptedException {
+        CircuitBreaker breaker = CircuitBreaker.of(classifier, 0.5, 2, Duration.ofSeconds(10), Duration.ofMillis(50), 1);
+        CompletablePromise<String> preTrip = new CompletablePromise<>();
+        breaker.execute(() -> preTrip);
+        breaker.execute(() -> Promises.failure(new IllegalStateException()));
+        breaker.execute(() -> Promises.failure(new IllegalStateException()));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(100);
+        
+        CompletablePromise<String> trial = new CompletablePromise<>();
+        breaker.execute(() -> trial);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // The call started while CLOSED is not a trial
+        preTrip.onSuccess("late");
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        trial.onFailure(new IllegalStateException());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+    
+    @Test
+    public void testRetryLoopFailsFastWhenOpen() {
+        CircuitBreaker breaker = CircuitBreaker.of(classifier, 1, 3, Duration.ofSeconds(10), Duration.ofSeconds(10), 1);
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy<Object> policy = classifier.withMaxRetries(10).withoutBackoff().withCircuitBreaker(breaker);
+        try {
+            Promises.retry((Callable<Object>)() -> {
+                calls.incrementAndGet();
+                throw new IllegalStateException();
+            }, Runnable::run, policy).join();
+            Assert.fail("Failure expected");
+        } catch (CompletionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof CircuitBreakerOpenException);
+            Assert.assertTrue(ex.getCause().getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(3, calls.get());
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompletionIteratorTests {
+
+    private TaskExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = TaskExecutors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testStreamsAllCompletionsFromManyThreads() {
+        int count = 200_000;
+        for (int chunkSize : new int[] {0, 1, 100}) {
+            try (Stream<Integer> results = Promises.streamCompletions(
+                    IntStream.range(0, count).mapToObj(i -> CompletableTask.supplyAsync(() -> i, executor)),
+                    chunkSize, Promises.Cancel.NONE)) {
+                long sum = results.mapToLong(Integer::longValue).sum();
+                Assert.assertEquals((long)count * (count - 1) / 2, sum);
+            }
+        }
+    }
+
+    @Test
+    public void testResultsAreInCompletionOrder() {
+        CompletablePromise<String> first  = new CompletablePromise<>();
+        CompletablePromise<String> second = new CompletablePromise<>();
+        CompletablePromise<String> third  = new CompletablePromise<>();
+        List<CompletablePromise<String>> promises = new ArrayList<>();
+        promises.add(first);
+        promises.add(second);
+        promises.add(third);
+        Iterator<String> results = Promises.iterateCompletions(promises, 0);
+        Assert.assertTrue(results.hasNext());
+        third.onSuccess("c");
+        first.onSuccess(null);
+        second.onFailure(new IllegalStateException("b"));
+        Assert.assertEquals("c", results.next());
+        Assert.assertNull(results.next());
+        try {
+            results.next();
+            Assert.fail("CompletionException expected");
+        } catch (CompletionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testNextWaitsForPendingResult() {
+        CompletablePromise<String> promise = new CompletablePromise<>();
+        List<CompletablePromise<String>> promises = new ArrayList<>();
+        promises.add(promise);
+        Iterator<String> results = Promises.iterateCompletions(promises, 1);
+        Assert.assertTrue(results.hasNext());
+        executor.submit(() -> {
+            Thread.sleep(50);
+            promise.onSuccess("done");
+            return null;
+        });
+        Assert.assertEquals("done", results.next());
+        Assert.assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testCloseCancelsEnlistedAndPending() {
+        List<CompletablePromise<String>> promises = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            promises.add(new CompletablePromise<>());
+        }
+        promises.get(0).onSuccess("first");
+        try (Stream<String> results = Promises.streamCompletions(promises, 4, Promises.Cancel.ALL)) {
+            Assert.assertEquals("first", results.findFirst().get());
+        }
+        Assert.assertFalse(promises.get(0).isCancelled());
+        for (int i = 1; i < promises.size(); i++) {
+            Assert.assertTrue(promises.get(i).isCancelled());
+        }
+    }
+
+    @Test
+    public void testClosedIteratorHasNoMoreResults() {
+        List<CompletablePromise<String>> promises = new ArrayList<>();
+        promises.add(new CompletablePromise<>());
+        CompletionIterator<String> results = new CompletionIterator<>(promises.iterator(), 0);
+        Assert.assertTrue(results.hasNext());
+        results.close();
+        Assert.assertFalse(results.hasNext());
+        Assert.assertFalse(promises.get(0).isCancelled());
+        try {
+            results.next();
+            Assert.fail("NoSuchElementException expected");
+        } catch (NoSuchElementException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStreamsCompletionBatches() {
+        int count = 100_000;
+        try (Stream<List<Integer>> batches = Promises.streamCompletionBatches(
+                IntStream.range(0, count).mapToObj(i -> CompletableTask.supplyAsync(() -> i, executor)),
+                1000, 64, Promises.Cancel.NONE)) {
+            long sum = batches.peek(batch -> Assert.assertTrue(batch.size() >= 1 && batch.size() <= 64))
+                              .flatMap(List::stream)
+                              .mapToLong(Integer::longValue)
+                              .sum();
+            Assert.assertEquals((long)count * (count - 1) / 2, sum);
+        }
+    }
+
+    @Test
+    public void testBatchEndsBeforeFailure() {
+        List<CompletablePromise<String>> promises = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            promises.add(new CompletablePromise<>());
+        }
+        CompletionIterator<String> results = new CompletionIterator<>(promises.iterator(), 0);
+        List<String> drained = new ArrayList<>();
+        Assert.assertEquals(0, results.drainTo(drained, 10));
+        promises.get(0).onSuccess("a");
+        promises.get(1).onSuccess("b");
+        promises.get(2).onFailure(new IllegalStateException("c"));
+        promises.get(3).onSuccess("d");
+        Assert.assertEquals(2, results.drainTo(drained, 10));
+        Assert.assertEquals(Arrays.asList("a", "b"), drained);
+        try {
+            results.nextBatch(10);
+            Assert.fail("CompletionException expected");
+        } catch (CompletionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(Arrays.asList("d"), results.nextBatch(10));
+        Assert.assertTrue(results.nextBatch(10, 10, TimeUnit.MILLISECONDS).isEmpty());
+        promises.get(4).onSuccess("e");
+        Assert.assertEquals(Arrays.asList("e"), results.nextBatch(10, 1, TimeUnit.SECONDS));
+        Assert.assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testAwaitedBatchEndsBeforeFailure() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            CompletablePromise<String> success = new CompletablePromise<>();
+            CompletablePromise<String> failure = new CompletablePromise<>();
+            CompletionIterator<String> results = new CompletionIterator<>(Arrays.asList(success, failure).iterator(), 0);
+            Assert.assertTrue(results.hasNext());
+            Promise<?> completer = executor.submit(() -> {
+                Thread.sleep(20);
+                success.onSuccess("a");
+                failure.onFailure(new IllegalStateException("b"));
+                return null;
+            });
+            // Both results may be settled while the consumer is parked
+            Assert.assertEquals(Arrays.asList("a"), results.nextBatch(10));
+            completer.get();
+            try {
+                results.nextBatch(10);
+                Assert.fail("CompletionException expected");
+            } catch (CompletionException ex) {
+                Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+            }
+            Assert.assertFalse(results.hasNext());
+        }
+    }
+    
+    @Test
+    public void testPublisherEnlistsPromisesOnDemand() throws Exception {
+        Assume.assumeTrue(CompletionPublisher.isSupported());
+        AtomicInteger enlisted = new AtomicInteger();
+        Iterable<CompletablePromise<Integer>> promises = () -> IntStream.range(0, 10).mapToObj(i -> {
+            enlisted.incrementAndGet();
+            CompletablePromise<Integer> promise = new CompletablePromise<>();
+            promise.onSuccess(i);
+            return promise;
+        }).iterator();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        subscribe(Promises.publishCompletions(promises, 0), subscriber);
+        Assert.assertEquals(0, enlisted.get());
+        subscriber.request(3);
+        Assert.assertEquals(Arrays.asList(0, 1, 2), subscriber.values);
+        // Checking for completion takes one promise ahead
+        Assert.assertEquals(4, enlisted.get());
+        Assert.assertFalse(subscriber.completed);
+        subscriber.request(Long.MAX_VALUE);
+        Assert.assertEquals(10, subscriber.values.size());
+        Assert.assertTrue(subscriber.completed);
+        Assert.assertNull(subscriber.error);
+    }
+
+    @Test
+    public void testPublisherCompletesOnExactDemand() throws Exception {
+        Assume.assumeTrue(CompletionPublisher.isSupported());
+        List<CompletablePromise<String>> promises = new ArrayList<>();
+        for (String value : Arrays.asList("a", "b")) {
+            CompletablePromise<String> promise = new CompletablePromise<>();
+            promise.onSuccess(value);
+            promises.add(promise);
+        }
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        subscribe(Promises.publishCompletions(promises, 0), subscriber);
+        subscriber.request(2);
+        Assert.assertEquals(Arrays.asList("a", "b"), subscriber.values);
+        Assert.assertTrue(subscriber.completed);
+        Assert.assertNull(subscriber.error);
+    }
+    
+    @Test
+    public void testPublisherCancelsEnlistedPromises() throws Exception {
+        Assume.assumeTrue(CompletionPublisher.isSupported());
+        List<CompletablePromise<String>> promises = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            promises.add(new CompletablePromise<>());
+        }
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        subscribe(Promises.publishCompletions(promises, 2), subscriber);
+        subscriber.request(10);
+        promises.get(1).onSuccess("b");
+        Assert.assertEquals(Arrays.asList("b"), subscriber.values);
+        subscriber.cancel();
+        // Only two promises were awaited at once
+        Assert.assertTrue(promises.get(0).isCancelled());
+        Assert.assertTrue(promises.get(2).isCancelled());
+        Assert.assertFalse(promises.get(3).isDone());
+        Assert.assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void testPublisherSignalsFailure() throws Exception {
+        Assume.assumeTrue(CompletionPublisher.isSupported());
+        CompletablePromise<String> promise = new CompletablePromise<>();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        subscribe(Promises.publishCompletions(Arrays.asList(promise), 1), subscriber);
+        subscriber.request(1);
+        promise.onFailure(new IllegalStateException("failed"));
+        Assert.assertTrue(subscriber.error instanceof IllegalStateException);
+        Assert.assertFalse(subscriber.completed);
+    }
+
+    private static void subscribe(Object publisher, RecordingSubscriber subscriber) throws Exception {
+        Class<?> subscriberClass = Class.forName("java.util.concurrent.Flow$Subscriber");
+        Object proxy = Proxy.newProxyInstance(
+            CompletionIteratorTests.class.getClassLoader(), new Class<?>[] {subscriberClass}, subscriber
+        );
+        Class.forName("java.util.concurrent.Flow$Publisher").getMethod("subscribe", subscriberClass).invoke(publisher, proxy);
+    }
+
+    // Flow.Subscriber via reflection, tests are compiled for Java 8 as well
+    static class RecordingSubscriber implements InvocationHandler {
+        final List<Object> values = new CopyOnWriteArrayList<>();
+        volatile Object subscription;
+        volatile Throwable error;
+        volatile boolean completed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "onSubscribe": subscription = args[0]; break;
+                case "onNext": values.add(args[0]); break;
+                case "onError": error = (Throwable)args[0]; break;
+                case "onComplete": completed = true; break;
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                default: return "RecordingSubscriber";
+            }
+            return null;
+        }
+
+        void request(long n) throws Exception {
+            Class.forName("java.util.concurrent.Flow$Subscription").getMethod("request", long.class).invoke(subscription, n);
+        }
+
+        void cancel() throws Exception {
+            Class.forName("java.util.concurrent.Flow$Subscription").getMethod("cancel").invoke(subscription);
+        }
+    }
+}
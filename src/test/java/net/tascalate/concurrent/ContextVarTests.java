@@ -0,0 +1,144 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.tascalate.concurrent.var.ContextBundle;
+import net.tascalate.concurrent.var.ContextTrampoline;
+import net.tascalate.concurrent.var.ContextVar;
+
+public class ContextVarTests {
+
+    private final List<ThreadLocal<String>> threadLocals = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < 6; i++) {
+            threadLocals.add(new ThreadLocal<>());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        threadLocals.forEach(ThreadLocal::remove);
+    }
+
+    @Test
+    public void testOptimizedPropagationResetsVariables() {
+        for (int size = 1; size <= threadLocals.size(); size++) {
+            List<ThreadLocal<String>> vars = threadLocals.subList(0, size);
+            ContextTrampoline trampoline = ContextVar.relayThreadLocals(vars);
+            vars.forEach(tl -> tl.set("captured"));
+            Executor executor = trampoline.withCurrentContext((Executor)Runnable::run);
+            vars.forEach(tl -> tl.set("own"));
+            List<String> seen = new ArrayList<>();
+            executor.execute(() -> vars.forEach(tl -> seen.add(tl.get())));
+            Assert.assertEquals(size, seen.stream().filter("captured"::equals).count());
+            // Optimized propagation doesn't restore values of the thread
+            Assert.assertTrue(vars.stream().allMatch(tl -> null == tl.get()));
+        }
+    }
+
+    @Test
+    public void testStrictPropagationRestoresVariables() {
+        for (int size = 1; size <= threadLocals.size(); size++) {
+            List<ThreadLocal<String>> vars = threadLocals.subList(0, size);
+            ContextTrampoline trampoline = ContextVar.relayThreadLocals(vars);
+            vars.forEach(tl -> tl.set("captured"));
+            Executor executor = trampoline.withCurrentContext((Executor)Runnable::run, ContextVar.Propagation.STRICT);
+            // Some variables differ from the captured ones, the rest are identical
+            for (int i = 0; i < size; i += 2) {
+                vars.get(i).set("own" + i);
+            }
+            List<String> expected = vars.stream().map(ThreadLocal::get).collect(Collectors.toList());
+            List<String> seen = new ArrayList<>();
+            executor.execute(() -> vars.forEach(tl -> seen.add(tl.get())));
+            Assert.assertEquals(size, seen.stream().filter("captured"::equals).count());
+            Assert.assertEquals(expected, vars.stream().map(ThreadLocal::get).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testStrictPropagationRestoresVariablesChangedByTask() {
+        for (int size = 1; size <= threadLocals.size(); size++) {
+            List<ThreadLocal<String>> vars = threadLocals.subList(0, size);
+            ContextTrampoline trampoline = ContextVar.relayThreadLocals(vars);
+            vars.forEach(tl -> tl.set("captured"));
+            Executor executor = trampoline.withCurrentContext((Executor)Runnable::run, ContextVar.Propagation.STRICT);
+            // The first variable differs from the captured one, the rest are identical
+            vars.get(0).set("own");
+            List<String> expected = vars.stream().map(ThreadLocal::get).collect(Collectors.toList());
+            executor.execute(() -> vars.forEach(tl -> tl.set("changed by task")));
+            Assert.assertEquals(expected, vars.stream().map(ThreadLocal::get).collect(Collectors.toList()));
+            // All variables hold the captured values
+            vars.get(0).set("captured");
+            executor.execute(() -> vars.forEach(ThreadLocal::remove));
+            Assert.assertTrue(vars.stream().allMatch(tl -> "captured".equals(tl.get())));
+        }
+    }
+    
+    @Test
+    public void testStrictPropagationRestoresNullValues() {
+        ThreadLocal<String> tl = threadLocals.get(0);
+        tl.set("captured");
+        Executor executor = ContextVar.relay(tl).withCurrentContext((Executor)Runnable::run, ContextVar.Propagation.STRICT);
+        tl.remove();
+        String[] seen = {null};
+        executor.execute(() -> seen[0] = tl.get());
+        Assert.assertEquals("captured", seen[0]);
+        Assert.assertNull(tl.get());
+    }
+
+    @Test
+    public void testBundlePropagatesAllVariablesAtOnce() throws Exception {
+        ContextBundle bundle = ContextBundle.create("test");
+        List<ContextVar<String>> vars = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            vars.add(bundle.newVar("var" + i));
+        }
+        for (int i = 0; i < vars.size(); i++) {
+            vars.get(i).set("value" + i);
+        }
+        TaskExecutorService pool = TaskExecutors.newSingleThreadExecutor();
+        try {
+            Executor executor = ContextVar.relay(bundle).withCurrentContext((Executor)pool);
+            // Captured snapshot is not affected by later modifications
+            vars.get(0).set("modified");
+            List<String> seen = CompletableTask.supplyAsync(
+                () -> vars.stream().map(ContextVar::get).collect(Collectors.toList()), executor
+            ).get();
+            for (int i = 0; i < vars.size(); i++) {
+                Assert.assertEquals("value" + i, seen.get(i));
+            }
+            Assert.assertEquals("modified", vars.get(0).get());
+            // Optimized propagation resets the bundle of the pool thread
+            Assert.assertNull(pool.submit(() -> vars.get(1).get()).get());
+        } finally {
+            pool.shutdown();
+            vars.forEach(ContextVar::remove);
+        }
+        Assert.assertNull(bundle.asContextVar().get());
+    }
+}
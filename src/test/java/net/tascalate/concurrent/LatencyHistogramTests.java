@@ -0,0 +1,81 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tascalate.concurrent.delays.LatencyHistogram;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTests {
+
+    @Test
+    public void testPercentilesWithinRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram(1_000_000);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(Duration.ofMillis(i));
+        }
+        assertNear(500, histogram.percentile(0.5));
+        assertNear(990, histogram.percentile(0.99));
+        assertNear(1000, histogram.percentile(1));
+    }
+    
+    @Test
+    public void testEmptyHistogramReportsZero() {
+        Assert.assertEquals(Duration.ZERO, new LatencyHistogram().percentile(0.5));
+    }
+    
+    @Test
+    public void testDecayFavorsRecentSamples() {
+        LatencyHistogram histogram = new LatencyHistogram(64);
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(Duration.ofMillis(100));
+        }
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(Duration.ofMillis(5));
+        }
+        Assert.assertTrue(histogram.getSampleCount() < 64);
+        assertNear(5, histogram.percentile(0.9));
+    }
+    
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram(1_000_000);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(40_000, histogram.getSampleCount());
+    }
+    
+    private static void assertNear(long expectedMillis, Duration actual) {
+        double error = Math.abs(actual.toNanos() / 1_000_000.0 - expectedMillis) / expectedMillis;
+        Assert.assertTrue("Expected ~" + expectedMillis + "ms but was " + actual, error < 0.04);
+    }
+}
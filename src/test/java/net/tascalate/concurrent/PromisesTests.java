@@ -15,11 +15,17 @@
  */
 package net.tascalate.concurrent;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
 
 import org.junit.After;
 import org.junit.Before;
@@ -51,6 +57,163 @@ public class PromisesTests {
         assertTrue("Second is Long ", v.get(1) instanceof Long);
     }
 
+    @Test
+    public void testAllPreservesOrderOfManyPromises() {
+        List<CompletablePromise<Integer>> promises = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            promises.add(new CompletablePromise<>());
+        }
+        Promise<List<Integer>> all = Promises.all(promises);
+        for (int i = promises.size() - 1; i >= 0; i--) {
+            promises.get(i).onSuccess(i);
+        }
+        List<Integer> v = all.join();
+        for (int i = 0; i < v.size(); i++) {
+            assertEquals(Integer.valueOf(i), v.get(i));
+        }
+    }
+    
+    @Test
+    public void testAtLeastReportsErrorsByPosition() {
+        List<CompletablePromise<Integer>> promises = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            promises.add(new CompletablePromise<>());
+        }
+        Promise<List<Integer>> atLeast = Promises.atLeast(3, 1, true, promises);
+        promises.get(1).onFailure(new IllegalStateException("1"));
+        promises.get(3).onFailure(new IllegalStateException("3"));
+        try {
+            atLeast.join();
+            fail("MultitargetException expected");
+        } catch (CompletionException ex) {
+            List<Throwable> errors = ((MultitargetException)ex.getCause()).getExceptions();
+            assertEquals(4, errors.size());
+            assertNull(errors.get(0));
+            assertEquals("1", errors.get(1).getMessage());
+            assertEquals("3", errors.get(3).getMessage());
+        }
+        assertTrue("Remaining are cancelled", promises.get(0).isCancelled());
+    }
+    
+    @Test
+    public void testCollectFoldsResultsFromManyThreads() {
+        TaskExecutorService executor = TaskExecutors.newFixedThreadPool(4);
+        try {
+            List<Promise<Integer>> promises = new ArrayList<>();
+            for (int i = 1; i <= 1000; i++) {
+                int v = i;
+                promises.add(CompletableTask.supplyAsync(() -> v, executor));
+            }
+            assertEquals(Integer.valueOf(500500), Promises.collect(promises, Collectors.summingInt(Integer::intValue)).join());
+            assertEquals(1000, Promises.collect(promises, Collectors.toConcurrentMap(v -> v, v -> v)).join().size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testCollectFailsOnFirstError() {
+        CompletablePromise<Integer> pending = new CompletablePromise<>();
+        List<Promise<Integer>> promises = new ArrayList<>();
+        promises.add(Promises.success(1));
+        promises.add(Promises.failure(new IllegalStateException()));
+        promises.add(pending);
+        try {
+            Promises.collect(promises, Collectors.toList()).join();
+            fail("MultitargetException expected");
+        } catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof MultitargetException);
+        }
+        assertTrue("Remaining are cancelled", pending.isCancelled());
+    }
+    
+    @Test
+    public void testPipelinedKeepsWindowFull() {
+        List<CompletablePromise<Integer>> spawned = new ArrayList<>();
+        List<Integer> values = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            values.add(i);
+        }
+        Promise<Integer> sum = Promises.pipelined(values, 4, v -> {
+            CompletablePromise<Integer> promise = new CompletablePromise<>();
+            spawned.add(promise);
+            return promise;
+        }, Collectors.summingInt(Integer::intValue));
+        assertEquals("Window is filled", 4, spawned.size());
+        // The slow head of the window doesn't block refilling
+        spawned.get(1).onSuccess(2);
+        assertEquals("Window is refilled after single completion", 5, spawned.size());
+        spawned.get(2).onSuccess(3);
+        spawned.get(4).onSuccess(5);
+        assertEquals(7, spawned.size());
+        assertFalse(sum.isDone());
+        spawned.get(0).onSuccess(1);
+        assertEquals(8, spawned.size());
+        for (int i = 3; i < 10; i++) {
+            // Later promises are spawned while completing earlier ones
+            if (i != 4) {
+                spawned.get(i).onSuccess(i + 1);
+            }
+        }
+        assertEquals(10, spawned.size());
+        assertEquals(Integer.valueOf(55), sum.join());
+    }
+    
+    @Test
+    public void testPipelinedWithSynchronousPromises() {
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            values.add(1);
+        }
+        Promise<Long> count = Promises.pipelined(values, 16, Promises::success, Collectors.counting());
+        assertEquals(Long.valueOf(100000), count.join());
+    }
+    
+    @Test
+    public void testPartitionedPreservesOrderWithSynchronousBatches() {
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            values.add(i);
+        }
+        List<Integer> result = Promises.partitioned(values, 3, Promises::success, Collectors.toList()).join();
+        assertEquals(values, result);
+    }
+    
+    @Test
+    public void testPartitionedOnDownstreamExecutor() {
+        TaskExecutorService executor = TaskExecutors.newFixedThreadPool(2);
+        try {
+            List<Integer> values = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                values.add(i);
+            }
+            List<Integer> result = Promises.partitioned(
+                values, 7, v -> CompletableTask.supplyAsync(() -> v, executor), Collectors.toList(), executor
+            ).join();
+            assertEquals(values, result);
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testPartitionedPropagatesDecoratorsOfFirstPromise() throws Exception {
+        TaskExecutorService executor = TaskExecutors.newSingleThreadExecutor();
+        try {
+            Thread executorThread = executor.submit(Thread::currentThread).get();
+            List<Integer> values = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                values.add(i);
+            }
+            // Default async executor of the spawned promises is inherited by the result
+            Thread asyncThread = Promises.partitioned(
+                values, 3, v -> CompletableTask.supplyAsync(() -> v, executor), Collectors.toList()
+            ).thenApplyAsync(r -> Thread.currentThread()).get();
+            assertEquals(executorThread, asyncThread);
+        } finally {
+            executor.shutdown();
+        }
+    }
     
     <T, U extends T, V extends T> Promise<List<T>> combineWithList(U a, V b) {
         List<Promise<T>> promises = new ArrayList<>();
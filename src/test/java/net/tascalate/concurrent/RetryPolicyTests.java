@@ -0,0 +1,278 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tascalate.concurrent.delays.LatencyHistogram;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetryPolicyTests {
+    
+    private TaskExecutorService executor;
+
+    @Before
+    public void setup() {
+        executor = TaskExecutors.newFixedThreadPool(4);
+    }
+    
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testBudgetRejectsRatioTruncatedToZero() {
+        RetryBudget.of(10, 0.0005);
+    }
+    
+    @Test
+    public void testBudgetThrottlesRetriesAcrossLoops() {
+        RetryBudget budget = RetryBudget.of(10, 0.1);
+        RetryPolicy<Object> policy = RetryPolicy.DEFAULT.withMaxRetries(100).withoutBackoff().withBudget(budget);
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            try {
+                Promises.retry((Callable<Object>)() -> {
+                    calls.incrementAndGet();
+                    throw new IllegalStateException();
+                }, executor, policy).join();
+                Assert.fail("Failure expected");
+            } catch (CompletionException ex) {
+                // expected
+            }
+        }
+        // Every failure takes a token, retries stop when half of the budget (5 tokens) is left:
+        // first loop makes initial call and 4 retries, other loops make the initial call only
+        Assert.assertEquals(5 + 4, calls.get());
+        Assert.assertFalse(budget.canRetry());
+    }
+    
+    @Test
+    public void testBudgetIsRefilledBySuccess() {
+        RetryBudget budget = RetryBudget.of(4, 1);
+        RetryPolicy<Object> policy = RetryPolicy.DEFAULT.withMaxRetries(10).withoutBackoff().withBudget(budget);
+        AtomicInteger calls = new AtomicInteger();
+        Object result = Promises.retry(() -> {
+            if (calls.incrementAndGet() < 2) {
+                throw new IllegalStateException();
+            }
+            return "done";
+        }, executor, policy).join();
+        Assert.assertEquals("done", result);
+        Assert.assertEquals(4.0, budget.getAvailableTokens(), 0.0001);
+    }
+    
+    @Test
+    public void testHedgeTakesFirstSuccessAndCancelsLosers() {
+        CompletablePromise<String> slow = new CompletablePromise<>();
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger maxOutstanding = new AtomicInteger();
+        Promise<String> result = Promises.hedge(
+            (RetryContext<String> ctx) -> {
+                maxOutstanding.accumulateAndGet(ctx.getOutstandingAttempts(), Math::max);
+                if (calls.incrementAndGet() == 1) {
+                    return slow;
+                } else {
+                    return CompletableTask.supplyAsync(() -> "fast", executor);
+                }
+            }, 
+            executor,
+            new RetryPolicy<String>().withMaxRetries(5),
+            DelayPolicy.fixedInterval(20), 
+            2
+        );
+        Assert.assertEquals("fast", result.join());
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(1, maxOutstanding.get());
+        // Losers are cancelled by the thread that completed the result, right after join() is released
+        try {
+            slow.get(1, TimeUnit.SECONDS);
+        } catch (CancellationException ex) {
+            // expected
+        } catch (Exception ex) {
+            throw new AssertionError(ex);
+        }
+        Assert.assertTrue(slow.isCancelled());
+    }
+    
+    @Test
+    public void testHedgesAreNotAccountedAsFailures() throws Exception {
+        RetryBudget budget = RetryBudget.of(10, 0.1);
+        LatencyHistogram latencies = new LatencyHistogram();
+        List<CompletablePromise<String>> attempts = new CopyOnWriteArrayList<>();
+        Promise<String> result = Promises.hedge(
+            () -> {
+                CompletablePromise<String> attempt = new CompletablePromise<>();
+                attempts.add(attempt);
+                return attempt;
+            }, 
+            executor,
+            new RetryPolicy<String>().withMaxRetries(5).withBudget(budget).withLatencyHistogram(latencies),
+            DelayPolicy.fixedInterval(10), 
+            3
+        );
+        long deadline = System.currentTimeMillis() + 5000;
+        while (attempts.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, attempts.size());
+        Assert.assertEquals(0, latencies.getSampleCount());
+        attempts.get(2).onSuccess("done");
+        Assert.assertEquals("done", result.join());
+        // Only the completed attempt is recorded, budget is not charged for hedges
+        Assert.assertEquals(1, latencies.getSampleCount());
+        Assert.assertEquals(10.0, budget.getAvailableTokens(), 0.0001);
+    }
+    
+    @Test
+    public void testHedgeRetriesFailedAttempts() {
+        AtomicInteger calls = new AtomicInteger();
+        Promise<String> result = Promises.hedge(
+            () -> calls.incrementAndGet() < 3 ? 
+                  Promises.<String>failure(new IllegalStateException()) : Promises.success("done"), 
+            executor,
+            new RetryPolicy<String>().retryOn(IllegalStateException.class).withMaxRetries(5).withoutBackoff(),
+            DelayPolicy.fixedInterval(1000), 
+            2
+        );
+        Assert.assertEquals("done", result.join());
+        Assert.assertEquals(3, calls.get());
+    }
+    
+    @Test
+    public void testAdaptiveTimeoutFollowsObservedLatency() {
+        LatencyHistogram latencies = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            latencies.record(Duration.ofMillis(10));
+        }
+        RetryPolicy<Object> policy = RetryPolicy.DEFAULT
+            .withMaxRetries(3)
+            .withoutBackoff()
+            // Adaptive timeout follows the histogram set afterwards
+            .withAdaptiveTimeout(0.99, 2)
+            .withLatencyHistogram(latencies);
+        AtomicInteger calls = new AtomicInteger();
+        long start = System.nanoTime();
+        Object result = Promises.retry(() -> {
+            if (calls.incrementAndGet() == 1) {
+                // Stuck call must be abandoned after ~2 x p99
+                Thread.sleep(5000);
+            }
+            return "done";
+        }, executor, policy).join();
+        Assert.assertEquals("done", result);
+        Assert.assertEquals(2, calls.get());
+        Assert.assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 2000);
+        // Only the successful attempt is recorded, the timed out one doesn't inflate the timeout
+        Assert.assertEquals(101, latencies.getSampleCount());
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void testAdaptiveTimeoutRequiresLatencyHistogram() {
+        RetryPolicy.DEFAULT.withAdaptiveTimeout(0.99, 2).withoutLatencyHistogram();
+    }
+    
+    @Test
+    public void testAttemptTimedOutInQueueIsNotExecuted() throws Exception {
+        TaskExecutorService single = TaskExecutors.newFixedThreadPool(1);
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            single.submit(() -> { blocker.await(); return null; });
+            List<Integer> executedRetries = new CopyOnWriteArrayList<>();
+            Promise<String> result = Promises.retry(
+                (RetryContext<String> ctx) -> {
+                    executedRetries.add(ctx.getRetryCount());
+                    return "done";
+                }, 
+                single, 
+                new RetryPolicy<String>().retryOn(TimeoutException.class).withMaxRetries(2).withoutBackoff()
+                    .withTimeout(DelayPolicy.fixedInterval(20))
+            );
+            Thread.sleep(200);
+            blocker.countDown();
+            Assert.assertEquals("done", result.get(5, TimeUnit.SECONDS));
+            // The first attempt expired in the queue and is failed without calling the code
+            Assert.assertEquals(Collections.singletonList(1), executedRetries);
+        } finally {
+            single.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testSynchronousFailuresDoNotRecurse() {
+        AtomicInteger calls = new AtomicInteger();
+        String result = Promises.retryFuture(
+            () -> calls.incrementAndGet() < 20_000 ? 
+                  Promises.<String>failure(new IllegalStateException()) : Promises.success("done"),
+            new RetryPolicy<String>().retryOn(IllegalStateException.class).withoutBackoff()
+        ).join();
+        Assert.assertEquals("done", result);
+        Assert.assertEquals(20_000, calls.get());
+    }
+    
+    @Test
+    public void testFutureAttemptIsCancelledOnTimeout() {
+        List<CompletablePromise<String>> attempts = new CopyOnWriteArrayList<>();
+        String result = Promises.retryFuture(
+            () -> {
+                CompletablePromise<String> attempt = new CompletablePromise<>();
+                attempts.add(attempt);
+                if (attempts.size() == 3) {
+                    attempt.onSuccess("done");
+                }
+                return attempt;
+            },
+            new RetryPolicy<String>().retryOn(CancellationException.class).withTimeout(DelayPolicy.fixedInterval(20))
+        ).join();
+        Assert.assertEquals("done", result);
+        Assert.assertEquals(3, attempts.size());
+        Assert.assertTrue(attempts.get(0).isCancelled());
+        Assert.assertTrue(attempts.get(1).isCancelled());
+    }
+    
+    @Test
+    public void testCancellationStopsRetryLoop() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        Promise<Object> result = Promises.retry(
+            (Callable<Object>)() -> {
+                calls.incrementAndGet();
+                throw new IllegalStateException();
+            }, 
+            executor, 
+            RetryPolicy.DEFAULT.withBackoff(DelayPolicy.fixedInterval(10))
+        );
+        Thread.sleep(50);
+        Assert.assertTrue(result.cancel(true));
+        int callsOnCancel = calls.get();
+        Thread.sleep(50);
+        Assert.assertTrue(calls.get() <= callsOnCancel + 1);
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class TaskExecutorsTests {
+
+    @Test
+    public void testWorkStealingPoolFanOutFanIn() throws InterruptedException {
+        TaskExecutorService executor = TaskExecutors.newWorkStealingPool(4);
+        try {
+            List<Promise<Integer>> parts = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                int value = i;
+                parts.add(
+                    executor.submit(() -> value)
+                            .dependent()
+                            .thenApplyAsync(v -> {
+                                Assert.assertTrue(Thread.currentThread() instanceof ForkJoinWorkerThread);
+                                return v * 2;
+                            })
+                );
+            }
+            int total = Promises.all(parts).join().stream().mapToInt(Integer::intValue).sum();
+            Assert.assertEquals(999 * 1000, total);
+        } finally {
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        }
+    }
+    
+    @Test
+    public void testWorkStealingPoolCancelInterruptsTask() throws InterruptedException {
+        TaskExecutorService executor = TaskExecutors.newWorkStealingPool(2);
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch interrupted = new CountDownLatch(1);
+            Promise<?> task = executor.submit(() -> {
+                started.countDown();
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException ex) {
+                    interrupted.countDown();
+                }
+            });
+            Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+            task.cancel(true);
+            Assert.assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testVirtualThreadsRequireSupportingRuntime() {
+        if (ThreadFactoryBuilder.isVirtualThreadsSupported()) {
+            return;
+        }
+        try {
+            TaskExecutors.newVirtualThreadPerTaskExecutor();
+            Assert.fail("UnsupportedOperationException expected");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+        try {
+            TaskExecutors.newThreadFactory().withVirtualThreads(true).build();
+            Assert.fail("UnsupportedOperationException expected");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testVirtualThreadCancelInterruptsTask() throws InterruptedException {
+        Assume.assumeTrue(ThreadFactoryBuilder.isVirtualThreadsSupported());
+        TaskExecutorService executor = TaskExecutors.newVirtualThreadPerTaskExecutor();
+        try {
+            Assert.assertTrue(executor.submit(() -> VirtualThreads.isVirtual(Thread.currentThread())).join());
+            CountDownLatch interrupted = new CountDownLatch(1);
+            Promise<?> task = executor.submit(() -> {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException ex) {
+                    interrupted.countDown();
+                }
+            });
+            Thread.sleep(100);
+            task.cancel(true);
+            Assert.assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testBatchingExecutorCoalescesSubmissions() throws InterruptedException {
+        AtomicInteger batches = new AtomicInteger();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        ExecutorService counting = new TaskExecutors.TaskExecutorServiceAdapter(pool) {
+            @Override
+            public void execute(Runnable command) {
+                batches.incrementAndGet();
+                super.execute(command);
+            }
+        };
+        TaskExecutorService executor = TaskExecutors.newBatchingExecutor(counting, 100, Duration.ofSeconds(10));
+        CountDownLatch blocker = new CountDownLatch(1);
+        pool.execute(() -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            List<Promise<Integer>> parts = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                int value = i;
+                parts.add(executor.submit(() -> value));
+            }
+            blocker.countDown();
+            int total = Promises.all(parts).get(1, TimeUnit.SECONDS).stream().mapToInt(Integer::intValue).sum();
+            Assert.assertEquals(999 * 1000 / 2, total);
+            // Every batch is a single submission to the underlying executor
+            Assert.assertEquals(10, batches.get());
+        } catch (Exception ex) {
+            throw new AssertionError(ex);
+        } finally {
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        }
+    }
+    
+    @Test
+    public void testBatchingExecutorFlushesAfterDelay() throws Exception {
+        TaskExecutorService executor = TaskExecutors.newBatchingExecutor(
+            Executors.newSingleThreadExecutor(), 100, Duration.ofMillis(50)
+        );
+        try {
+            long start = System.nanoTime();
+            Assert.assertEquals("done", executor.submit(() -> "done").get(1, TimeUnit.SECONDS));
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testBatchingExecutorRunsAcceptedTasksOnShutdown() throws InterruptedException {
+        TaskExecutorService executor = TaskExecutors.newBatchingExecutor(
+            Executors.newSingleThreadExecutor(), 100, Duration.ofSeconds(10)
+        );
+        AtomicInteger executed = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            executor.execute(executed::incrementAndGet);
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertEquals(10, executed.get());
+        try {
+            executor.execute(executed::incrementAndGet);
+            Assert.fail("RejectedExecutionException expected");
+        } catch (RejectedExecutionException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testBatchingExecutorRejectsWholeBatch() throws Exception {
+        AtomicBoolean reject = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        ExecutorService rejecting = new TaskExecutors.TaskExecutorServiceAdapter(pool) {
+            @Override
+            public void execute(Runnable command) {
+                if (reject.get()) {
+                    throw new RejectedExecutionException("Saturated");
+                }
+                super.execute(command);
+            }
+        };
+        TaskExecutorService executor = TaskExecutors.newBatchingExecutor(rejecting, 3, Duration.ofSeconds(10));
+        try {
+            AtomicInteger executed = new AtomicInteger();
+            Promise<?> first = executor.submit(executed::incrementAndGet);
+            Promise<?> second = executor.submit(executed::incrementAndGet);
+            try {
+                executor.execute(executed::incrementAndGet);
+                Assert.fail("RejectedExecutionException expected");
+            } catch (RejectedExecutionException ex) {
+                // The plain runnable has no promise, so it is reported with the exception
+                Assert.assertEquals(1, ex.getSuppressed().length);
+            }
+            // Rejected tasks are not kept in the buffer
+            for (Promise<?> p : Arrays.asList(first, second)) {
+                try {
+                    p.get(1, TimeUnit.SECONDS);
+                    Assert.fail("RejectedExecutionException expected");
+                } catch (ExecutionException ex) {
+                    Assert.assertTrue(ex.getCause() instanceof RejectedExecutionException);
+                }
+            }
+            reject.set(false);
+            List<Promise<?>> accepted = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                accepted.add(executor.submit(executed::incrementAndGet));
+            }
+            Promises.all(accepted).get(1, TimeUnit.SECONDS);
+            Assert.assertEquals(3, executed.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testAffinityKeepsContinuationsOnWorkerThread() throws InterruptedException {
+        AtomicInteger submissions = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Executor counting = command -> {
+            submissions.incrementAndGet();
+            pool.execute(command);
+        };
+        try {
+            Executor executor = TaskExecutors.withAffinity(counting);
+            Set<Thread> threads = ConcurrentHashMap.newKeySet();
+            CompletablePromise<Integer> source = new CompletablePromise<>();
+            Promise<Integer> result = source.defaultAsyncOn(executor);
+            for (int i = 0; i < 40; i++) {
+                result = result.thenApplyAsync(v -> {
+                    threads.add(Thread.currentThread());
+                    return v + 1;
+                });
+            }
+            // Completed outside of the pool, continuations are submitted once then stay on the worker
+            source.onSuccess(0);
+            Assert.assertEquals(40, result.join().intValue());
+            Assert.assertFalse(threads.contains(Thread.currentThread()));
+            // Every 17th continuation is submitted due to the inline depth limit
+            Assert.assertEquals(3, submissions.get());
+        } finally {
+            pool.shutdown();
+            Assert.assertTrue(pool.awaitTermination(1, TimeUnit.SECONDS));
+        }
+    }
+    
+    @Test
+    public void testAffinityWithWorkStealingPoolForksLocally() throws InterruptedException {
+        TaskExecutorService pool = TaskExecutors.newWorkStealingPool(2);
+        try {
+            Executor executor = TaskExecutors.withAffinity(pool, 0);
+            Promise<Integer> result = CompletableTask.supplyAsync(() -> 0, pool).defaultAsyncOn(executor);
+            for (int i = 0; i < 10; i++) {
+                result = result.thenApplyAsync(v -> {
+                    Assert.assertTrue(Thread.currentThread() instanceof ForkJoinWorkerThread);
+                    return v + 1;
+                });
+            }
+            Assert.assertEquals(10, result.join().intValue());
+        } finally {
+            pool.shutdown();
+            Assert.assertTrue(pool.awaitTermination(1, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimeoutSchedulersTests {
+    
+    private final List<Runnable> pending = new ArrayList<>();
+    private TimeoutScheduler previous;
+    
+    @Before
+    public void setup() {
+        // Manual "clock": actions are fired only when test asks to
+        previous = TimeoutSchedulers.install((action, delay, timeUnit) -> {
+            synchronized (pending) {
+                pending.add(action);
+            }
+            return () -> {
+                synchronized (pending) {
+                    return pending.remove(action);
+                }
+            };
+        });
+    }
+    
+    @After
+    public void tearDown() {
+        TimeoutSchedulers.install(previous);
+    }
+    
+    @Test
+    public void testOrTimeoutUsesInstalledScheduler() {
+        Promise<String> promise = new CompletablePromise<String>().orTimeout(Duration.ofDays(1));
+        Assert.assertEquals(1, pending.size());
+        fireAll();
+        try {
+            promise.join();
+            Assert.fail("Timeout expected");
+        } catch (CompletionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+    }
+    
+    @Test
+    public void testTimeoutIsCancelledOnCompletion() throws Exception {
+        CompletablePromise<String> origin = new CompletablePromise<>();
+        Promise<String> promise = origin.onTimeout("timeout", Duration.ofDays(1));
+        origin.onSuccess("value");
+        Assert.assertEquals("value", promise.join());
+        // Cleanup may run after join() returns
+        for (int i = 0; i < 100 && !isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(isEmpty());
+    }
+    
+    @Test
+    public void testTimeoutCancelsOriginAndUsesSupplier() {
+        CompletablePromise<String> origin = new CompletablePromise<>();
+        Promise<String> promise = origin.onTimeout(() -> "fallback", Duration.ofDays(1), true);
+        fireAll();
+        Assert.assertEquals("fallback", promise.join());
+        Assert.assertTrue(origin.isCancelled());
+    }
+    
+    @Test
+    public void testCancelledResultReleasesTimer() {
+        CompletablePromise<String> origin = new CompletablePromise<>();
+        Promise<String> promise = origin.orTimeout(Duration.ofDays(1));
+        Assert.assertEquals(1, pending.size());
+        promise.cancel(true);
+        Assert.assertTrue(isEmpty());
+    }
+    
+    @Test
+    public void testShardedTimingWheel() throws Exception {
+        TimeoutScheduler scheduler = TimeoutSchedulers.newShardedTimingWheel(4, 1, TimeUnit.MILLISECONDS, 64);
+        CountDownLatch fired = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            scheduler.schedule(fired::countDown, i % 10, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+    
+    private boolean isEmpty() {
+        synchronized (pending) {
+            return pending.isEmpty();
+        }
+    }
+    
+    private void fireAll() {
+        List<Runnable> actions;
+        synchronized (pending) {
+            actions = new ArrayList<>(pending);
+            pending.clear();
+        }
+        actions.forEach(Runnable::run);
+    }
+}
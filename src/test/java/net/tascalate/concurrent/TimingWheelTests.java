@@ -0,0 +1,81 @@
+/**
+ * Copyright 2015-2020 Valery Silaev (http://vsilaev.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tascalate.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelTests {
+    
+    private TimingWheel wheel;
+    
+    @Before
+    public void setup() {
+        wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8, r -> {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+    
+    @Test
+    public void testTimeoutFiresNotEarlierThanDeadline() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        // Longer than one wheel rotation
+        wheel.schedule(fired::countDown, 50, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(fired.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+    
+    @Test
+    public void testCancelledTimeoutDoesNotFire() throws Exception {
+        AtomicInteger cancelledCalls = new AtomicInteger();
+        CountDownLatch fired = new CountDownLatch(1);
+        for (int i = 0; i < 1000; i++) {
+            // Deadlines are far beyond the test runtime, so cancel always wins,
+            // but buckets are still shared with the timeout below (wheel size is 8)
+            Assert.assertTrue(wheel.schedule(cancelledCalls::incrementAndGet, 60_000 + i % 20, TimeUnit.MILLISECONDS).cancel());
+        }
+        TimeoutScheduler.ScheduledTimeout last = wheel.schedule(fired::countDown, 40, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(fired.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(last.cancel());
+        Assert.assertEquals(0, cancelledCalls.get());
+    }
+    
+    @Test
+    public void testWorkerResumesAfterIdle() throws Exception {
+        CountDownLatch first = new CountDownLatch(1);
+        wheel.schedule(first::countDown, 1, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(first.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        CountDownLatch second = new CountDownLatch(1);
+        wheel.schedule(second::countDown, 1, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(second.await(5, TimeUnit.SECONDS));
+    }
+}